@@ -0,0 +1,323 @@
+package mightypork.utils.ion.bench;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import mightypork.utils.ion.Ion;
+import mightypork.utils.ion.IonBinary;
+import mightypork.utils.ion.IonBundled;
+import mightypork.utils.ion.IonDataBundle;
+import mightypork.utils.ion.IonInput;
+import mightypork.utils.ion.IonOutput;
+
+
+/**
+ * Payloads measured by {@link IonBenchmark}. Each payload is written and read
+ * as one object; the data is generated from a fixed seed, so runs are
+ * comparable.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+final class BenchCases {
+	
+	private static final int SEED = 42;
+	
+	private static final int ELEMENTS = 1000;
+	private static final int ARRAY_LENGTH = 64 * 1024;
+	
+	
+	/**
+	 * Registered binary type
+	 */
+	public static class Point implements IonBinary {
+		
+		public static final int ION_MARK = 200;
+		
+		public int x, y;
+		public double weight;
+		
+		
+		public Point()
+		{
+		}
+		
+		
+		public Point(int x, int y, double weight)
+		{
+			this.x = x;
+			this.y = y;
+			this.weight = weight;
+		}
+		
+		
+		@Override
+		public void load(IonInput in) throws IOException
+		{
+			x = in.readInt();
+			y = in.readInt();
+			weight = in.readDouble();
+		}
+		
+		
+		@Override
+		public void save(IonOutput out) throws IOException
+		{
+			out.writeInt(x);
+			out.writeInt(y);
+			out.writeDouble(weight);
+		}
+	}
+	
+	
+	/**
+	 * Registered bundled type
+	 */
+	public static class Entity implements IonBundled {
+		
+		public static final int ION_MARK = 201;
+		
+		public String name;
+		public int health;
+		public boolean alive;
+		public float speed;
+		
+		
+		public Entity()
+		{
+		}
+		
+		
+		public Entity(String name, int health, boolean alive, float speed)
+		{
+			this.name = name;
+			this.health = health;
+			this.alive = alive;
+			this.speed = speed;
+		}
+		
+		
+		@Override
+		public void load(IonDataBundle bundle)
+		{
+			name = bundle.get("name", "");
+			health = bundle.getInt("health", 0);
+			alive = bundle.getBoolean("alive", false);
+			speed = bundle.getFloat("speed", 0);
+		}
+		
+		
+		@Override
+		public void save(IonDataBundle bundle)
+		{
+			bundle.put("name", name);
+			bundle.put("health", health);
+			bundle.put("alive", alive);
+			bundle.put("speed", speed);
+		}
+	}
+	
+	
+	private BenchCases()
+	{
+	}
+	
+	
+	static void registerTypes()
+	{
+		Ion.register(Point.class);
+		Ion.register(Entity.class);
+	}
+	
+	
+	/**
+	 * Create a payload
+	 *
+	 * @param name payload name (a value of {@link IonBenchmark.Payload#payload})
+	 * @return the payload
+	 */
+	static Object create(String name)
+	{
+		final Random rand = new Random(SEED);
+		
+		switch (name) {
+			case "primitives":
+				return primitives(rand);
+				
+			case "ints":
+				return ints(rand);
+				
+			case "doubles":
+				return doubles(rand);
+				
+			case "bytes":
+				return bytes(rand);
+				
+			case "strings":
+				return strings(rand);
+				
+			case "bundles":
+				return bundle(rand, 3);
+				
+			case "wrappers":
+				return wrappers(rand);
+				
+			case "binary":
+				return points(rand);
+				
+			case "bundled":
+				return entities(rand);
+				
+			default:
+				throw new IllegalArgumentException("Unknown payload: " + name);
+		}
+	}
+	
+	
+	private static Object primitives(Random rand)
+	{
+		final Object[] arr = new Object[ELEMENTS];
+		for (int i = 0; i < arr.length; i++) {
+			switch (i % 4) {
+				case 0:
+					arr[i] = rand.nextInt(1000);
+					break;
+					
+				case 1:
+					arr[i] = rand.nextLong();
+					break;
+					
+				case 2:
+					arr[i] = rand.nextDouble();
+					break;
+					
+				default:
+					arr[i] = rand.nextBoolean();
+			}
+		}
+		return arr;
+	}
+	
+	
+	private static Object ints(Random rand)
+	{
+		final int[] arr = new int[ARRAY_LENGTH];
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = rand.nextInt(256); // small values, like tile ids
+		}
+		return arr;
+	}
+	
+	
+	private static Object doubles(Random rand)
+	{
+		final double[] arr = new double[ARRAY_LENGTH];
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = rand.nextGaussian();
+		}
+		return arr;
+	}
+	
+	
+	private static Object bytes(Random rand)
+	{
+		final byte[] arr = new byte[ARRAY_LENGTH];
+		rand.nextBytes(arr);
+		return arr;
+	}
+	
+	
+	private static String word(Random rand)
+	{
+		final StringBuilder sb = new StringBuilder();
+		final int length = 3 + rand.nextInt(12);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('a' + rand.nextInt(26)));
+		}
+		return sb.toString();
+	}
+	
+	
+	private static Object strings(Random rand)
+	{
+		final String[] arr = new String[ELEMENTS];
+		for (int i = 0; i < arr.length; i++) {
+			// mostly ASCII, some accented and non-Latin text
+			switch (i % 10) {
+				case 8:
+					arr[i] = word(rand) + " čeština";
+					break;
+					
+				case 9:
+					arr[i] = word(rand) + " 日本語";
+					break;
+					
+				default:
+					arr[i] = word(rand);
+			}
+		}
+		return arr;
+	}
+	
+	
+	private static IonDataBundle bundle(Random rand, int depth)
+	{
+		final IonDataBundle bundle = new IonDataBundle();
+		
+		bundle.put("id", rand.nextInt());
+		bundle.put("name", word(rand));
+		bundle.put("x", rand.nextDouble());
+		bundle.put("y", rand.nextDouble());
+		bundle.put("flag", rand.nextBoolean());
+		
+		if (depth > 0) {
+			for (int i = 0; i < 5; i++) {
+				bundle.put("child" + i, bundle(rand, depth - 1));
+			}
+		}
+		
+		return bundle;
+	}
+	
+	
+	private static Object wrappers(Random rand)
+	{
+		final List<Object> list = new ArrayList<>();
+		final Map<Object, Object> map = new HashMap<>();
+		
+		for (int i = 0; i < ELEMENTS; i++) {
+			list.add(word(rand));
+			map.put(word(rand), rand.nextInt());
+		}
+		
+		// stored in sequence and map wrappers
+		final IonDataBundle bundle = new IonDataBundle();
+		bundle.putSequence("list", list);
+		bundle.putMap("map", map);
+		return bundle;
+	}
+	
+	
+	private static Object points(Random rand)
+	{
+		final List<Point> list = new ArrayList<>();
+		for (int i = 0; i < ELEMENTS; i++) {
+			list.add(new Point(rand.nextInt(1000), rand.nextInt(1000), rand.nextDouble()));
+		}
+		return list;
+	}
+	
+	
+	private static Object entities(Random rand)
+	{
+		final List<Entity> list = new ArrayList<>();
+		for (int i = 0; i < ELEMENTS; i++) {
+			list.add(new Entity(word(rand), rand.nextInt(100), rand.nextBoolean(), rand.nextFloat()));
+		}
+		return list;
+	}
+}
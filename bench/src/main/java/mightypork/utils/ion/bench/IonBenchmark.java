@@ -0,0 +1,153 @@
+package mightypork.utils.ion.bench;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import mightypork.utils.ion.Ion;
+import mightypork.utils.ion.IonInput;
+import mightypork.utils.ion.IonOutput;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * JMH benchmark of the ION codec: writeObject and readObject of each payload
+ * in {@link BenchCases}, in a few formats. Besides throughput, the
+ * <code>encodedBytes</code> counter gives the encoded bytes per second (divide
+ * by ops/s for bytes per op); allocation is reported by the GC profiler.<br>
+ * <br>
+ * Usage: <code>java -jar target/benchmarks.jar -prof gc</code>, optionally
+ * with <code>-p payload=ints,strings</code> or <code>-p format=plain</code>.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IonBenchmark {
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	
+	/**
+	 * Payload and its encoded form
+	 */
+	@State(Scope.Thread)
+	public static class Payload {
+		
+		@Param({ "primitives", "ints", "doubles", "bytes", "strings", "bundles", "wrappers", "binary", "bundled" })
+		public String payload;
+		
+		@Param({ "plain", "compact", "deflate" })
+		public String format;
+		
+		int flags;
+		Object object;
+		byte[] encoded;
+		
+		/** Reused target of writes */
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		
+		
+		@Setup(Level.Trial)
+		public void setUp() throws IOException
+		{
+			BenchCases.registerTypes();
+			
+			flags = formatFlags(format);
+			object = BenchCases.create(payload);
+			encode(this);
+			encoded = written.toByteArray();
+		}
+	}
+	
+	
+	/**
+	 * Encoded bytes, counted per iteration
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		
+		public long encodedBytes;
+		
+		
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			encodedBytes = 0;
+		}
+	}
+	
+	
+	static int formatFlags(String format)
+	{
+		switch (format) {
+			case "plain":
+				return 0;
+				
+			case "compact":
+				return Ion.FORMAT_COMPACT | Ion.FORMAT_STRING_TABLE | Ion.FORMAT_UTF8;
+				
+			case "deflate":
+				return Ion.FORMAT_COMPACT | Ion.FORMAT_STRING_TABLE | Ion.FORMAT_UTF8 | Ion.FORMAT_DEFLATE;
+				
+			default:
+				throw new IllegalArgumentException("Unknown format: " + format);
+		}
+	}
+	
+	
+	/**
+	 * Encode the payload to its reused output
+	 *
+	 * @return encoded size
+	 */
+	static int encode(Payload p) throws IOException
+	{
+		p.written.reset();
+		
+		final IonOutput out = new IonOutput(p.written, BUFFER_SIZE, false);
+		if (p.flags != 0) out.writeFormat(p.flags);
+		out.writeObject(p.object);
+		out.close();
+		
+		return p.written.size();
+	}
+	
+	
+	@Benchmark
+	public int writeObject(Payload p, Counters c) throws IOException
+	{
+		final int size = encode(p);
+		c.encodedBytes += size;
+		return size;
+	}
+	
+	
+	@Benchmark
+	public Object readObject(Payload p, Counters c) throws IOException
+	{
+		try(final IonInput in = new IonInput(new ByteArrayInputStream(p.encoded), BUFFER_SIZE, false)) {
+			c.encodedBytes += p.encoded.length;
+			return in.readObject();
+		}
+	}
+}
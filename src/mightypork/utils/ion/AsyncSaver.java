@@ -0,0 +1,117 @@
+package mightypork.utils.ion;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Saves objects to files in a background thread. The object is encoded in the
+ * calling thread, so the saved state is a snapshot taken at the time of the
+ * call; only the file I/O is done in the background.<br>
+ * The data is written to a temporary file, which then atomically replaces the
+ * target file - the target is never left half-written. Saves are written in
+ * the order they were submitted.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+final class AsyncSaver {
+	
+	/**
+	 * Single I/O thread, created on demand. The thread is not a daemon, so
+	 * pending saves are finished before the application exits.
+	 */
+	private static final ExecutorService executor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			return new Thread(r, "ION async saver");
+		}
+	});
+	
+	
+	private AsyncSaver()
+	{
+	}
+	
+	
+	/**
+	 * Encode an object, and write it to a file in the background.
+	 *
+	 * @param file target file
+	 * @param obj saved object
+	 * @param format format flags, 0 for the default format
+	 * @return future completed when the file is written
+	 * @throws IOException if the object could not be encoded
+	 */
+	static Future<Void> save(final File file, Object obj, int format) throws IOException
+	{
+		final MemoryBufferOutput snapshot = new MemoryBufferOutput(BufferPool.DEFAULT_SIZE, true);
+		
+		try {
+			final IonOutput out = new IonOutput(snapshot);
+			if (format != 0) out.writeFormat(format);
+			out.writeObject(obj);
+			out.close();
+		} catch (final IOException | RuntimeException e) {
+			snapshot.release();
+			throw e;
+		}
+		
+		return executor.submit(new Callable<Void>() {
+			
+			@Override
+			public Void call() throws IOException
+			{
+				try {
+					write(file, snapshot);
+				} finally {
+					snapshot.release();
+				}
+				return null;
+			}
+		});
+	}
+	
+	
+	private static void write(File file, MemoryBufferOutput data) throws IOException
+	{
+		final File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		
+		try {
+			try(final RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+				raf.setLength(0);
+				
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer buf = ByteBuffer.wrap(data.array(), 0, data.size());
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+				
+				channel.force(true);
+			}
+			
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			if (temp.exists()) temp.delete();
+		}
+	}
+}
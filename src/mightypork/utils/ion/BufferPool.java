@@ -0,0 +1,70 @@
+package mightypork.utils.ion;
+
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Pool of byte buffers used by the buffered ION streams, so that opening many
+ * inputs / outputs does not allocate a fresh buffer each time.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+final class BufferPool {
+	
+	/** Default buffer size used by buffered ION streams */
+	static final int DEFAULT_SIZE = 64 * 1024;
+	
+	/** Max number of buffers kept of each kind */
+	private static final int MAX_POOLED = 16;
+	
+	/** Max capacity of a pooled buffer; larger buffers are dropped */
+	static final int MAX_CAPACITY = 4 * DEFAULT_SIZE;
+	
+	private static final Queue<ByteBuffer> heapBuffers = new ConcurrentLinkedQueue<>();
+	private static final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+	
+	
+	private BufferPool()
+	{
+	}
+	
+	
+	/**
+	 * Get a cleared buffer with at least the given capacity
+	 *
+	 * @param capacity min capacity
+	 * @param direct use a direct buffer
+	 * @return the buffer
+	 */
+	static ByteBuffer obtain(int capacity, boolean direct)
+	{
+		final ByteBuffer pooled = (direct ? directBuffers : heapBuffers).poll();
+		
+		if (pooled != null && pooled.capacity() >= capacity) {
+			pooled.clear();
+			return pooled;
+		}
+		
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+	
+	
+	/**
+	 * Return a buffer to the pool. The buffer must not be used afterwards.
+	 * Buffers larger than {@link #MAX_CAPACITY} are left to the GC.
+	 *
+	 * @param buffer released buffer
+	 */
+	static void release(ByteBuffer buffer)
+	{
+		if (buffer == null || buffer.capacity() > MAX_CAPACITY) return;
+		
+		final Queue<ByteBuffer> queue = buffer.isDirect() ? directBuffers : heapBuffers;
+		if (queue.size() < MAX_POOLED) {
+			queue.offer(buffer);
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package mightypork.utils.ion;
+
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Data input reading from a byte buffer, which is refilled by the
+ * implementation when drained. Primitive arrays are decoded in bulk using
+ * typed views of the buffer.<br>
+ * Byte order and encoding are the same as with a {@link DataInputStream}.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+abstract class ByteBufferInput implements DataInput, Closeable {
+	
+	/** Buffer in read mode (position = next byte, limit = end of data) */
+	protected ByteBuffer buffer;
+	
+	/** Number of bytes consumed before the buffered ones */
+	private long consumed;
+	
+	
+	/**
+	 * Make more bytes available in the buffer. Unread bytes must be kept.
+	 *
+	 * @return false if there is no more data
+	 * @throws IOException on read error
+	 */
+	protected abstract boolean refill() throws IOException;
+	
+	
+	/**
+	 * Make sure the given number of bytes is available in the buffer
+	 *
+	 * @param count byte count (not more than buffer capacity)
+	 * @throws IOException on read error or end of data
+	 */
+	protected final void require(int count) throws IOException
+	{
+		while (buffer.remaining() < count) {
+			if (!refillBuffer()) throw new EOFException();
+		}
+	}
+	
+	
+	/**
+	 * Refill the buffer, keeping track of the input position.
+	 *
+	 * @return false if there is no more data
+	 * @throws IOException on read error
+	 */
+	private boolean refillBuffer() throws IOException
+	{
+		consumed += buffer.position();
+		final boolean more = refill();
+		consumed -= buffer.position();
+		return more;
+	}
+	
+	
+	/**
+	 * @return number of bytes read so far
+	 */
+	final long position()
+	{
+		return consumed + buffer.position();
+	}
+	
+	
+	@Override
+	public void readFully(byte[] b) throws IOException
+	{
+		readFully(b, 0, b.length);
+	}
+	
+	
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(1);
+			
+			final int n = Math.min(buffer.remaining(), len);
+			buffer.get(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	@Override
+	public int skipBytes(int n) throws IOException
+	{
+		int left = n;
+		while (left > 0) {
+			if (!buffer.hasRemaining() && !refillBuffer()) break;
+			
+			final int step = Math.min(buffer.remaining(), left);
+			buffer.position(buffer.position() + step);
+			left -= step;
+		}
+		return n - left;
+	}
+	
+	
+	@Override
+	public boolean readBoolean() throws IOException
+	{
+		require(1);
+		return buffer.get() != 0;
+	}
+	
+	
+	@Override
+	public byte readByte() throws IOException
+	{
+		require(1);
+		return buffer.get();
+	}
+	
+	
+	@Override
+	public int readUnsignedByte() throws IOException
+	{
+		require(1);
+		return buffer.get() & 0xFF;
+	}
+	
+	
+	@Override
+	public short readShort() throws IOException
+	{
+		require(2);
+		return buffer.getShort();
+	}
+	
+	
+	@Override
+	public int readUnsignedShort() throws IOException
+	{
+		require(2);
+		return buffer.getShort() & 0xFFFF;
+	}
+	
+	
+	@Override
+	public char readChar() throws IOException
+	{
+		require(2);
+		return buffer.getChar();
+	}
+	
+	
+	@Override
+	public int readInt() throws IOException
+	{
+		require(4);
+		return buffer.getInt();
+	}
+	
+	
+	@Override
+	public long readLong() throws IOException
+	{
+		require(8);
+		return buffer.getLong();
+	}
+	
+	
+	@Override
+	public float readFloat() throws IOException
+	{
+		require(4);
+		return buffer.getFloat();
+	}
+	
+	
+	@Override
+	public double readDouble() throws IOException
+	{
+		require(8);
+		return buffer.getDouble();
+	}
+	
+	
+	/**
+	 * Read a line of bytes, same as {@link DataInputStream#readLine()}. The
+	 * line ends with "\n", "\r" or "\r\n".
+	 *
+	 * @return the line without the line end, null at the end of data
+	 */
+	@Override
+	public String readLine() throws IOException
+	{
+		if (!buffer.hasRemaining() && !refillBuffer()) return null;
+		
+		final StringBuilder sb = new StringBuilder();
+		while (buffer.hasRemaining() || refillBuffer()) {
+			final int c = buffer.get() & 0xFF;
+			
+			if (c == '\n') break;
+			
+			if (c == '\r') {
+				if ((buffer.hasRemaining() || refillBuffer()) && buffer.get(buffer.position()) == '\n') {
+					buffer.get();
+				}
+				break;
+			}
+			
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+	
+	
+	@Override
+	public String readUTF() throws IOException
+	{
+		return DataInputStream.readUTF(this);
+	}
+	
+	
+	/**
+	 * Read booleans stored as bytes
+	 */
+	void readBooleans(boolean[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(1);
+			
+			final int n = Math.min(buffer.remaining(), len);
+			for (int i = 0; i < n; i++) {
+				arr[off + i] = buffer.get() != 0;
+			}
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void readShorts(short[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(2);
+			
+			final int n = Math.min(buffer.remaining() / 2, len);
+			buffer.asShortBuffer().get(arr, off, n);
+			buffer.position(buffer.position() + n * 2);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void readChars(char[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(2);
+			
+			final int n = Math.min(buffer.remaining() / 2, len);
+			buffer.asCharBuffer().get(arr, off, n);
+			buffer.position(buffer.position() + n * 2);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void readInts(int[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(4);
+			
+			final int n = Math.min(buffer.remaining() / 4, len);
+			buffer.asIntBuffer().get(arr, off, n);
+			buffer.position(buffer.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void readLongs(long[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(8);
+			
+			final int n = Math.min(buffer.remaining() / 8, len);
+			buffer.asLongBuffer().get(arr, off, n);
+			buffer.position(buffer.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void readFloats(float[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(4);
+			
+			final int n = Math.min(buffer.remaining() / 4, len);
+			buffer.asFloatBuffer().get(arr, off, n);
+			buffer.position(buffer.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void readDoubles(double[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(8);
+			
+			final int n = Math.min(buffer.remaining() / 8, len);
+			buffer.asDoubleBuffer().get(arr, off, n);
+			buffer.position(buffer.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+}
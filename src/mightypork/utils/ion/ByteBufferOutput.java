@@ -0,0 +1,343 @@
+package mightypork.utils.ion;
+
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Data output staging bytes in a byte buffer, which is drained by the
+ * implementation when full. Primitive arrays are encoded in bulk using typed
+ * views of the buffer.<br>
+ * Byte order and encoding are the same as with a {@link DataOutputStream}.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+abstract class ByteBufferOutput implements DataOutput, Flushable, Closeable {
+	
+	/** Buffer in write mode (position = end of data) */
+	protected ByteBuffer buffer;
+	
+	/** Number of bytes drained before the buffered ones */
+	private long drained;
+	
+	
+	/**
+	 * Make room in the buffer (ie. by writing out the buffered bytes).
+	 *
+	 * @param count number of bytes needed (not more than buffer capacity)
+	 * @throws IOException on write error
+	 */
+	protected abstract void drain(int count) throws IOException;
+	
+	
+	/**
+	 * Make sure the given number of bytes can be written to the buffer
+	 *
+	 * @param count byte count (not more than buffer capacity)
+	 * @throws IOException on write error
+	 */
+	protected final void require(int count) throws IOException
+	{
+		if (buffer.remaining() < count) drainBuffer(count);
+	}
+	
+	
+	/**
+	 * Drain the buffer, keeping track of the output position. Implementations
+	 * should call this instead of <code>drain()</code>.
+	 *
+	 * @param count number of bytes needed
+	 * @throws IOException on write error
+	 */
+	protected final void drainBuffer(int count) throws IOException
+	{
+		drained += buffer.position();
+		drain(count);
+		drained -= buffer.position();
+	}
+	
+	
+	/**
+	 * Advance the position without writing anything (for outputs which only
+	 * count the bytes).
+	 *
+	 * @param count byte count
+	 */
+	protected final void advance(long count)
+	{
+		drained += count;
+	}
+	
+	
+	/**
+	 * @return number of bytes written so far
+	 */
+	final long position()
+	{
+		return drained + buffer.position();
+	}
+	
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		require(1);
+		buffer.put((byte) b);
+	}
+	
+	
+	@Override
+	public void write(byte[] b) throws IOException
+	{
+		write(b, 0, b.length);
+	}
+	
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(1);
+			
+			final int n = Math.min(buffer.remaining(), len);
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	@Override
+	public void writeBoolean(boolean v) throws IOException
+	{
+		require(1);
+		buffer.put((byte) (v ? 1 : 0));
+	}
+	
+	
+	@Override
+	public void writeByte(int v) throws IOException
+	{
+		require(1);
+		buffer.put((byte) v);
+	}
+	
+	
+	@Override
+	public void writeShort(int v) throws IOException
+	{
+		require(2);
+		buffer.putShort((short) v);
+	}
+	
+	
+	@Override
+	public void writeChar(int v) throws IOException
+	{
+		require(2);
+		buffer.putChar((char) v);
+	}
+	
+	
+	@Override
+	public void writeInt(int v) throws IOException
+	{
+		require(4);
+		buffer.putInt(v);
+	}
+	
+	
+	@Override
+	public void writeLong(long v) throws IOException
+	{
+		require(8);
+		buffer.putLong(v);
+	}
+	
+	
+	@Override
+	public void writeFloat(float v) throws IOException
+	{
+		require(4);
+		buffer.putFloat(v);
+	}
+	
+	
+	@Override
+	public void writeDouble(double v) throws IOException
+	{
+		require(8);
+		buffer.putDouble(v);
+	}
+	
+	
+	@Override
+	public void writeBytes(String s) throws IOException
+	{
+		final int len = s.length();
+		for (int i = 0; i < len; i++) {
+			writeByte(s.charAt(i));
+		}
+	}
+	
+	
+	@Override
+	public void writeChars(String s) throws IOException
+	{
+		final int len = s.length();
+		for (int i = 0; i < len; i++) {
+			writeChar(s.charAt(i));
+		}
+	}
+	
+	
+	/**
+	 * Write a string in modified UTF-8, like {@link DataOutputStream#writeUTF}
+	 */
+	@Override
+	public void writeUTF(String s) throws IOException
+	{
+		final int len = s.length();
+		
+		int utflen = 0;
+		for (int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				utflen++;
+			} else if (c > 0x07FF) {
+				utflen += 3;
+			} else {
+				utflen += 2;
+			}
+		}
+		
+		if (utflen > 65535) throw new UTFDataFormatException("Encoded string too long: " + utflen + " bytes");
+		
+		writeShort(utflen);
+		
+		for (int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				require(1);
+				buffer.put((byte) c);
+			} else if (c > 0x07FF) {
+				require(3);
+				buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else {
+				require(2);
+				buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+	
+	
+	/**
+	 * Write booleans as bytes
+	 */
+	void writeBooleans(boolean[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(1);
+			
+			final int n = Math.min(buffer.remaining(), len);
+			for (int i = 0; i < n; i++) {
+				buffer.put((byte) (arr[off + i] ? 1 : 0));
+			}
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void writeShorts(short[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(2);
+			
+			final int n = Math.min(buffer.remaining() / 2, len);
+			buffer.asShortBuffer().put(arr, off, n);
+			buffer.position(buffer.position() + n * 2);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void writeChars(char[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(2);
+			
+			final int n = Math.min(buffer.remaining() / 2, len);
+			buffer.asCharBuffer().put(arr, off, n);
+			buffer.position(buffer.position() + n * 2);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void writeInts(int[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(4);
+			
+			final int n = Math.min(buffer.remaining() / 4, len);
+			buffer.asIntBuffer().put(arr, off, n);
+			buffer.position(buffer.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void writeLongs(long[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(8);
+			
+			final int n = Math.min(buffer.remaining() / 8, len);
+			buffer.asLongBuffer().put(arr, off, n);
+			buffer.position(buffer.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void writeFloats(float[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(4);
+			
+			final int n = Math.min(buffer.remaining() / 4, len);
+			buffer.asFloatBuffer().put(arr, off, n);
+			buffer.position(buffer.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	
+	void writeDoubles(double[] arr, int off, int len) throws IOException
+	{
+		while (len > 0) {
+			require(8);
+			
+			final int n = Math.min(buffer.remaining() / 8, len);
+			buffer.asDoubleBuffer().put(arr, off, n);
+			buffer.position(buffer.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+}
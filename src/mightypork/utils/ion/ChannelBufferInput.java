@@ -0,0 +1,61 @@
+package mightypork.utils.ion;
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Buffered data input reading from a stream or channel through a pooled byte
+ * buffer.<br>
+ * The input reads ahead, so the underlying stream should not be used by
+ * anything else while this input is open.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class ChannelBufferInput extends ByteBufferInput {
+	
+	private final ReadableByteChannel channel;
+	
+	
+	@SuppressWarnings("resource")
+	public ChannelBufferInput(InputStream in, int bufferSize, boolean direct)
+	{
+		this(in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : Channels.newChannel(in), bufferSize, direct);
+	}
+	
+	
+	public ChannelBufferInput(ReadableByteChannel channel, int bufferSize, boolean direct)
+	{
+		this.channel = channel;
+		
+		buffer = BufferPool.obtain(bufferSize, direct);
+		buffer.flip(); // empty, in read mode
+	}
+	
+	
+	@Override
+	protected boolean refill() throws IOException
+	{
+		buffer.compact();
+		final int n;
+		try {
+			n = channel.read(buffer);
+		} finally {
+			buffer.flip();
+		}
+		return n >= 0;
+	}
+	
+	
+	@Override
+	public void close() throws IOException
+	{
+		BufferPool.release(buffer);
+		buffer = null;
+		channel.close();
+	}
+}
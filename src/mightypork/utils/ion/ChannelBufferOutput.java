@@ -0,0 +1,69 @@
+package mightypork.utils.ion;
+
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * Buffered data output writing to a stream or channel through a pooled byte
+ * buffer. The buffer is written out in large chunks when full, and on flush /
+ * close.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class ChannelBufferOutput extends ByteBufferOutput {
+	
+	private final WritableByteChannel channel;
+	private final OutputStream stream;
+	
+	
+	@SuppressWarnings("resource")
+	public ChannelBufferOutput(OutputStream out, int bufferSize, boolean direct)
+	{
+		this.stream = out;
+		this.channel = (out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out));
+		
+		buffer = BufferPool.obtain(bufferSize, direct);
+	}
+	
+	
+	@Override
+	protected void drain(int count) throws IOException
+	{
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			buffer.compact();
+		}
+	}
+	
+	
+	@Override
+	public void flush() throws IOException
+	{
+		drainBuffer(0);
+		stream.flush();
+	}
+	
+	
+	@Override
+	public void close() throws IOException
+	{
+		if (buffer == null) return; // already closed
+		
+		try {
+			flush();
+		} finally {
+			BufferPool.release(buffer);
+			buffer = null;
+			channel.close();
+		}
+	}
+}
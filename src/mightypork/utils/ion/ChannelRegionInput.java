@@ -0,0 +1,69 @@
+package mightypork.utils.ion;
+
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Buffered data input reading a region of a file using positioned reads. The
+ * channel position is not changed, so several regions of one channel can be
+ * read independently.<br>
+ * Closing the input does not close the channel.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class ChannelRegionInput extends ByteBufferInput {
+	
+	private final FileChannel channel;
+	
+	/** File position of the next byte to load into the buffer */
+	private long position;
+	private final long end;
+	
+	
+	/**
+	 * @param channel file channel
+	 * @param offset region start
+	 * @param length region length
+	 * @param bufferSize max buffer size
+	 */
+	public ChannelRegionInput(FileChannel channel, long offset, long length, int bufferSize)
+	{
+		this.channel = channel;
+		this.position = offset;
+		this.end = offset + length;
+		
+		buffer = BufferPool.obtain((int) Math.min(bufferSize, Math.max(length, 16)), false);
+		buffer.flip(); // empty, in read mode
+	}
+	
+	
+	@Override
+	protected boolean refill() throws IOException
+	{
+		if (position >= end) return false;
+		
+		buffer.compact();
+		final int n;
+		try {
+			buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (end - position)));
+			n = channel.read(buffer, position);
+		} finally {
+			buffer.flip();
+		}
+		
+		if (n < 0) return false;
+		
+		position += n;
+		return true;
+	}
+	
+	
+	@Override
+	public void close()
+	{
+		BufferPool.release(buffer);
+		buffer = null;
+	}
+}
@@ -0,0 +1,68 @@
+package mightypork.utils.ion;
+
+
+/**
+ * Data output which only counts the written bytes. The bytes go through a
+ * small pooled buffer and are discarded when it's full.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class CountingOutput extends ByteBufferOutput {
+	
+	private static final int BUFFER_SIZE = 4096;
+	
+	
+	public CountingOutput()
+	{
+		buffer = BufferPool.obtain(BUFFER_SIZE, false);
+	}
+	
+	
+	@Override
+	protected void drain(int count)
+	{
+		buffer.clear();
+	}
+	
+	
+	/**
+	 * @return number of bytes written
+	 */
+	public long size()
+	{
+		return position();
+	}
+	
+	
+	/**
+	 * Count bytes as written, without writing them
+	 *
+	 * @param count byte count
+	 */
+	public void skip(long count)
+	{
+		advance(count);
+	}
+	
+	
+	/**
+	 * Return the buffer to the pool. The output must not be used afterwards.
+	 */
+	public void release()
+	{
+		BufferPool.release(buffer);
+		buffer = null;
+	}
+	
+	
+	@Override
+	public void flush()
+	{
+	}
+	
+	
+	@Override
+	public void close()
+	{
+	}
+}
@@ -0,0 +1,200 @@
+package mightypork.utils.ion;
+
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+
+/**
+ * Data output compressing written data in independent blocks. Each block is
+ * written as its uncompressed length, compressed length and the compressed
+ * bytes; the stream is terminated by a block of zero length.<br>
+ * Since the blocks don't share compression state, each can be decompressed on
+ * its own. With a pool, full blocks are compressed on the pool while the next
+ * ones are being filled, and written in order.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class DeflateBlockOutput extends ByteBufferOutput {
+	
+	/** Uncompressed size of a block */
+	static final int BLOCK_SIZE = 64 * 1024;
+	/** Max compressed size of a block (deflate expands data by a few bytes at worst) */
+	static final int MAX_COMPRESSED_SIZE = BLOCK_SIZE + BLOCK_SIZE / 8;
+	
+	private final DataOutput target;
+	private final Closeable targetStream;
+	private final int level;
+	
+	/** Pool compressing the blocks, null to compress in the calling thread */
+	private final ForkJoinPool pool;
+	/** Max number of blocks being compressed at once */
+	private final int maxPending;
+	
+	/** Block being filled, backing the buffer */
+	private Block current;
+	/** Blocks being compressed, in order */
+	private final Deque<ForkJoinTask<Block>> pending = new ArrayDeque<>();
+	/** Written blocks, reused */
+	private final Deque<Block> free = new ArrayDeque<>();
+	
+	
+	/**
+	 * @param target output receiving the compressed blocks
+	 * @param targetStream stream closed when this output is closed
+	 * @param level compression level (see {@link Deflater})
+	 * @param pool pool to compress the blocks on, null to compress in the
+	 *            calling thread
+	 */
+	public DeflateBlockOutput(DataOutput target, Closeable targetStream, int level, ForkJoinPool pool)
+	{
+		this.target = target;
+		this.targetStream = targetStream;
+		this.level = level;
+		this.pool = pool;
+		this.maxPending = pool == null ? 0 : pool.getParallelism() + 1;
+		
+		current = new Block(level);
+		buffer = ByteBuffer.wrap(current.data);
+	}
+	
+	
+	@Override
+	protected void drain(int count) throws IOException
+	{
+		final int length = buffer.position();
+		if (length == 0) return;
+		
+		current.length = length;
+		
+		if (pool == null) {
+			current.call();
+			writeBlock(current);
+			buffer.clear();
+			return;
+		}
+		
+		if (pending.size() >= maxPending) {
+			free.add(writeBlock(Ion.await(pending.poll())));
+		}
+		
+		pending.add(pool.submit(current));
+		
+		current = free.isEmpty() ? new Block(level) : free.poll();
+		buffer = ByteBuffer.wrap(current.data);
+	}
+	
+	
+	/**
+	 * Write a compressed block to the target
+	 *
+	 * @param block the block
+	 * @return the block
+	 * @throws IOException on write error
+	 */
+	private Block writeBlock(Block block) throws IOException
+	{
+		target.writeInt(block.length);
+		target.writeInt(block.size);
+		target.write(block.compressed, 0, block.size);
+		return block;
+	}
+	
+	
+	/**
+	 * Compress the buffered data, and write all blocks
+	 *
+	 * @throws IOException on write error
+	 */
+	private void writeAll() throws IOException
+	{
+		drainBuffer(0);
+		
+		while (!pending.isEmpty()) {
+			free.add(writeBlock(Ion.await(pending.poll())));
+		}
+	}
+	
+	
+	@Override
+	public void flush() throws IOException
+	{
+		writeAll();
+		if (target instanceof Flushable) ((Flushable) target).flush();
+	}
+	
+	
+	@Override
+	public void close() throws IOException
+	{
+		if (buffer == null) return; // already closed
+		
+		try {
+			writeAll();
+			target.writeInt(0); // end of blocks
+			if (target instanceof Flushable) ((Flushable) target).flush();
+		} finally {
+			buffer = null;
+			
+			// blocks still pending after an error are left to the GC
+			current.deflater.end();
+			for (final Block block : free) {
+				block.deflater.end();
+			}
+			
+			targetStream.close();
+		}
+	}
+	
+	
+	/**
+	 * Block of data, compressed when called
+	 */
+	private static class Block implements Callable<Block> {
+		
+		final byte[] data = new byte[BLOCK_SIZE];
+		int length;
+		
+		byte[] compressed = new byte[MAX_COMPRESSED_SIZE];
+		int size;
+		
+		final Deflater deflater;
+		
+		
+		public Block(int level)
+		{
+			deflater = new Deflater(level);
+		}
+		
+		
+		@Override
+		public Block call()
+		{
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			
+			size = 0;
+			while (!deflater.finished()) {
+				if (size == compressed.length) {
+					final byte[] grown = new byte[compressed.length * 2];
+					System.arraycopy(compressed, 0, grown, 0, size);
+					compressed = grown;
+				}
+				
+				size += deflater.deflate(compressed, size, compressed.length - size);
+			}
+			
+			return this;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package mightypork.utils.ion;
+
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import mightypork.utils.exceptions.CorruptDataException;
+
+
+/**
+ * Data input decompressing blocks written by a {@link DeflateBlockOutput}.
+ * With a pool, the following blocks are read ahead and decompressed on the
+ * pool while the current one is being read.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class InflateBlockInput extends ByteBufferInput {
+	
+	private final DataInput source;
+	private final Closeable sourceStream;
+	
+	/** Pool decompressing the blocks, null to decompress in the calling thread */
+	private final ForkJoinPool pool;
+	/** Max number of blocks read ahead */
+	private final int maxAhead;
+	
+	/** Block used without a pool */
+	private Block single;
+	/** Blocks being decompressed, in order */
+	private final Deque<ForkJoinTask<Block>> pending = new ArrayDeque<>();
+	/** Consumed blocks, reused */
+	private final Deque<Block> free = new ArrayDeque<>();
+	
+	/** End block was read */
+	private boolean ended;
+	
+	
+	/**
+	 * @param source input providing the compressed blocks
+	 * @param sourceStream stream closed when this input is closed
+	 * @param pool pool to decompress the blocks on, null to decompress in the
+	 *            calling thread
+	 */
+	public InflateBlockInput(DataInput source, Closeable sourceStream, ForkJoinPool pool)
+	{
+		this.source = source;
+		this.sourceStream = sourceStream;
+		this.pool = pool;
+		this.maxAhead = pool == null ? 0 : pool.getParallelism() + 1;
+		
+		buffer = ByteBuffer.allocate(DeflateBlockOutput.BLOCK_SIZE);
+		buffer.flip(); // empty, in read mode
+	}
+	
+	
+	@Override
+	protected boolean refill() throws IOException
+	{
+		if (pool == null) {
+			if (single == null) single = new Block();
+			if (!readBlock(single)) return false;
+			
+			makeRoom(single.length);
+			try {
+				single.inflate(buffer.array(), buffer.position());
+				buffer.position(buffer.position() + single.length);
+			} finally {
+				buffer.flip();
+			}
+			return true;
+		}
+		
+		readAhead();
+		if (pending.isEmpty()) return false;
+		
+		final ForkJoinTask<Block> head = pending.poll();
+		readAhead(); // keep the pool busy while this block is used
+		final Block block = Ion.await(head);
+		
+		makeRoom(block.length);
+		buffer.put(block.data, 0, block.length);
+		buffer.flip();
+		
+		free.add(block);
+		return true;
+	}
+	
+	
+	/**
+	 * Switch the buffer to write mode, keeping the unread bytes, with room for
+	 * the given number of bytes.
+	 *
+	 * @param length number of bytes
+	 */
+	private void makeRoom(int length)
+	{
+		if (buffer.capacity() - buffer.remaining() < length) {
+			final ByteBuffer grown = ByteBuffer.allocate(buffer.remaining() + length);
+			grown.put(buffer);
+			buffer = grown;
+		} else {
+			buffer.compact();
+		}
+	}
+	
+	
+	/**
+	 * Read compressed blocks and submit them to the pool, up to the max number
+	 * of blocks ahead.
+	 *
+	 * @throws IOException on read error
+	 */
+	private void readAhead() throws IOException
+	{
+		while (pending.size() < maxAhead) {
+			final Block block = free.isEmpty() ? new Block() : free.poll();
+			if (!readBlock(block)) {
+				free.add(block);
+				return;
+			}
+			
+			pending.add(pool.submit(block));
+		}
+	}
+	
+	
+	/**
+	 * Read a compressed block from the source
+	 *
+	 * @param block block to read into
+	 * @return false if there are no more blocks
+	 * @throws IOException on read error
+	 */
+	private boolean readBlock(Block block) throws IOException
+	{
+		if (ended) return false;
+		
+		final int length = source.readInt();
+		if (length == 0) {
+			ended = true;
+			return false;
+		}
+		
+		final int size = source.readInt();
+		if (length < 0 || length > DeflateBlockOutput.BLOCK_SIZE || size < 0 || size > DeflateBlockOutput.MAX_COMPRESSED_SIZE) {
+			throw new CorruptDataException("Invalid compressed block: " + size + " -> " + length);
+		}
+		
+		source.readFully(block.compressed, 0, size);
+		
+		block.size = size;
+		block.length = length;
+		return true;
+	}
+	
+	
+	@Override
+	public void close() throws IOException
+	{
+		// blocks still pending are left to the GC
+		if (single != null) single.inflater.end();
+		for (final Block block : free) {
+			block.inflater.end();
+		}
+		free.clear();
+		
+		sourceStream.close();
+	}
+	
+	
+	/**
+	 * Compressed block, decompressed when called
+	 */
+	private static class Block implements Callable<Block> {
+		
+		final byte[] compressed = new byte[DeflateBlockOutput.MAX_COMPRESSED_SIZE];
+		int size;
+		
+		/** Decompressed data, allocated when called */
+		byte[] data;
+		int length;
+		
+		final Inflater inflater = new Inflater();
+		
+		
+		@Override
+		public Block call() throws CorruptDataException
+		{
+			if (data == null) data = new byte[DeflateBlockOutput.BLOCK_SIZE];
+			
+			inflate(data, 0);
+			return this;
+		}
+		
+		
+		/**
+		 * Decompress the block
+		 *
+		 * @param target array to decompress to
+		 * @param offset offset in the array
+		 * @throws CorruptDataException if the block is damaged
+		 */
+		void inflate(byte[] target, int offset) throws CorruptDataException
+		{
+			inflater.reset();
+			inflater.setInput(compressed, 0, size);
+			try {
+				final int n = inflater.inflate(target, offset, length);
+				if (n != length || !inflater.finished()) throw new CorruptDataException("Compressed block is damaged.");
+			} catch (final DataFormatException e) {
+				throw new CorruptDataException("Compressed block is damaged.", e);
+			}
+		}
+	}
+}
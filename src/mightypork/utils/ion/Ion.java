@@ -2,17 +2,17 @@ package mightypork.utils.ion;
 
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import mightypork.utils.Reflect;
 import mightypork.utils.Str;
 
 
@@ -23,12 +23,6 @@ import mightypork.utils.Str;
  */
 public class Ion {
 	
-	private static final int RESERVED_LOW = 0;
-	private static final int RESERVED_HIGH = 49;
-	
-	private static final int RANGE_LOW = 0;
-	private static final int RANGE_HIGH = 255;
-	
 	// marks for object saving
 	/** Null mark */
 	static final int NULL = 0;
@@ -84,25 +78,108 @@ public class Ion {
 	public static final int MAP = 25;
 	/** Array of arbitrary objects */
 	public static final int OBJECT_ARRAY = 26;
+	/** Back-reference to an object already written, see FORMAT_IDENTITY */
+	static final int REFERENCE = 27;
+	/** Object array split to independently encoded segments */
+	static final int SEGMENTED_ARRAY = 28;
+	/** Sequence split to independently encoded segments */
+	static final int SEGMENTED_SEQUENCE = 29;
+	/** Format header - followed by format flags for the rest of the stream */
+	static final int FORMAT = 49;
+	
+	// format flags
+	/**
+	 * Compact format: lengths are written as varints, and short, int and long
+	 * values (and arrays) as zig-zag varints.
+	 */
+	public static final int FORMAT_COMPACT = 0x01;
+	
+	/**
+	 * String table: each string is written in full only once per stream, later
+	 * occurrences are written as a reference to the first one.
+	 */
+	public static final int FORMAT_STRING_TABLE = 0x02;
+	
+	/**
+	 * Sized bundles: each value in a bundle is prefixed with its encoded length,
+	 * so it can be skipped or loaded lazily. Values are encoded independently -
+	 * strings and object references in a value are not shared with the rest of
+	 * the stream.
+	 */
+	public static final int FORMAT_SIZED_BUNDLES = 0x04;
 	
-	/** Ionizables<Mark, Class> */
-	private static Map<Integer, Class<?>> markToClass = new HashMap<>();
-	private static Map<Class<?>, Integer> classToMark = new HashMap<>();
+	/**
+	 * Identity: a registered object (ie. {@link IonBinary}, {@link IonBundled}
+	 * or one saved by an ionizer) referenced more than once is written only
+	 * the first time, later references are written as a back-reference, and
+	 * loaded as the same instance. This also allows cyclic references (except
+	 * cycles through objects saved by an ionizer).
+	 */
+	public static final int FORMAT_IDENTITY = 0x08;
 	
-	private static Map<Class<?>, IonizerBinary<?>> ionizersBinary = new HashMap<>();
-	private static Map<Class<?>, IonizerBundled<?>> ionizersBundled = new HashMap<>();
+	/**
+	 * Deflate compression: the rest of the stream is compressed in independent
+	 * blocks of 64 kB. Compression can't be turned off within a stream. The
+	 * level can be set using {@link IonOutput#setCompressionLevel(int)}.
+	 */
+	public static final int FORMAT_DEFLATE = 0x10;
 	
-	private static boolean reservedMarkChecking;
+	/**
+	 * UTF-8 strings: strings are written with a varint byte length, as Latin-1
+	 * bytes if all characters fit, or in standard UTF-8 otherwise. Unlike the
+	 * default (modified UTF-8), the length is not limited to 64 kB.
+	 */
+	public static final int FORMAT_UTF8 = 0x20;
 	
-	static {
-		reservedMarkChecking = false;
-		
-		// register built-ins
-		register(ION_BUNDLE, IonDataBundle.class);
-		register(SEQUENCE_WRAPPER, IonSequenceWrapper.class);
-		register(MAP_WRAPPER, IonMapWrapper.class);
-		
-		reservedMarkChecking = true;
+	/** Mask of all format flags supported by this version */
+	static final int FORMAT_SUPPORTED = FORMAT_COMPACT | FORMAT_STRING_TABLE | FORMAT_SIZED_BUNDLES | FORMAT_IDENTITY | FORMAT_DEFLATE | FORMAT_UTF8;
+	
+	/** Strings up to this length are encoded in a reused buffer */
+	static final int STRING_BUFFER_SIZE = 8192;
+	
+	/** Default number of elements in a segment, see IonOutput.setParallel() */
+	static final int DEFAULT_SEGMENT_SIZE = 4096;
+	
+	/** Longer strings are not added to the string table */
+	static final int STRING_TABLE_MAX_LENGTH = 256;
+	
+	/** The default type registry */
+	private static final IonTypes types = new IonTypes();
+	
+	/** Statistics recorded by new streams, null if disabled */
+	private static volatile IonStats stats;
+	
+	
+	/**
+	 * Get the default type registry, used by inputs and outputs that were not
+	 * given their own (see {@link IonInput#setTypes(IonTypes)}).
+	 *
+	 * @return the default registry
+	 */
+	public static IonTypes getDefaultTypes()
+	{
+		return types;
+	}
+	
+	
+	/**
+	 * Set statistics recorded by all inputs and outputs created from now on
+	 * (see {@link IonOutput#setStats(IonStats)}). Disabled by default.
+	 *
+	 * @param stats statistics to record to, null to disable
+	 */
+	public static void setStats(IonStats stats)
+	{
+		Ion.stats = stats;
+	}
+	
+	
+	/**
+	 * @return statistics recorded by new streams, null if disabled
+	 */
+	public static IonStats getStats()
+	{
+		return stats;
 	}
 	
 	
@@ -114,55 +191,38 @@ public class Ion {
 	 */
 	public static void register(int mark, Class<?> objClass)
 	{
-		if (!IonBinary.class.isAssignableFrom(objClass)) {
-			if (!IonBundled.class.isAssignableFrom(objClass)) {
-				throw new IllegalArgumentException("Cannot register directly: " + Str.val(objClass));
-			}
-		}
-		
-		assertHasImplicitConstructor(objClass);
-		
-		registerUsingMark(mark, objClass);
+		types.register(mark, objClass);
 	}
 	
 	
 	/**
-	 * Try to register a type using a static final ION_MARK int field.
+	 * Register a type for writing/loading, with a factory used to create
+	 * instances when loading. The type does not need an implicit constructor.
 	 *
-	 * @param objClass type class
+	 * @param mark binary ION mark
+	 * @param objClass class of the registered object
+	 * @param factory instance factory
 	 */
-	public static void register(Class<?> objClass)
+	public static <T> void register(int mark, Class<T> objClass, IonFactory<? extends T> factory)
 	{
-		if (!IonBinary.class.isAssignableFrom(objClass)) {
-			if (!IonBundled.class.isAssignableFrom(objClass)) {
-				throw new IllegalArgumentException("Cannot register directly: " + Str.val(objClass));
-			}
-		}
-		
-		assertHasImplicitConstructor(objClass);
-		registerUsingConstant(objClass);
+		types.register(mark, objClass, factory);
 	}
 	
 	
-	private static void registerUsingMark(int mark, Class<?> objClass)
+	/**
+	 * Try to register a type using a static final ION_MARK int field.
+	 *
+	 * @param objClass type class
+	 */
+	public static void register(Class<?> objClass)
 	{
-		assertMarkAvailable(mark, objClass);
-		
-		markToClass.put(mark, objClass);
-		classToMark.put(objClass, mark);
+		types.register(objClass);
 	}
 	
 	
 	public static void registerUsingConstant(Class<?> objClass)
 	{
-		try {
-			final int mark = ((Number) Reflect.getConstantFieldValue(objClass, "ION_MARK")).intValue();
-			
-			registerUsingMark(mark, objClass);
-			
-		} catch (final Exception e) {
-			throw new RuntimeException("Could not register " + Str.val(objClass) + " using an ION_MARK field.", e);
-		}
+		types.registerUsingConstant(objClass);
 	}
 	
 	
@@ -174,11 +234,7 @@ public class Ion {
 	 */
 	public static void registerIndirect(int mark, IonizerBinary<?> ionizer)
 	{
-		final Class<?> objClass = Reflect.getGenericParameters(ionizer.getClass())[0];
-		
-		registerUsingMark(mark, objClass);
-		
-		ionizersBinary.put(objClass, ionizer);
+		types.registerIndirect(mark, ionizer);
 	}
 	
 	
@@ -190,41 +246,7 @@ public class Ion {
 	 */
 	public static void registerIndirect(int mark, IonizerBundled<?> ionizer)
 	{
-		final Class<?> objClass = Reflect.getGenericParameters(ionizer.getClass())[0];
-		
-		registerUsingMark(mark, objClass);
-		
-		ionizersBundled.put(objClass, ionizer);
-	}
-	
-	
-	private static void assertHasImplicitConstructor(Class<?> objClass)
-	{
-		try {
-			objClass.getConstructor();
-		} catch (NoSuchMethodException | SecurityException e) {
-			throw new RuntimeException("Class " + objClass + " doesn't have an implicit constructor.");
-		}
-	}
-	
-	
-	private static void assertMarkAvailable(int mark, Class<?> objClass)
-	{
-		// negative marks are allowed.
-		if (mark > RANGE_HIGH) throw new IllegalArgumentException("Mark must be < 256.");
-		if (mark < RANGE_LOW) throw new IllegalArgumentException("Mark must be positive.");
-		
-		if (reservedMarkChecking && isMarkReserved(mark)) {
-			throw new IllegalArgumentException("Marks " + RESERVED_LOW + ".." + RESERVED_HIGH + " are reserved.");
-		}
-		
-		if (markToClass.containsKey(mark)) {
-			throw new IllegalArgumentException("Mark " + mark + " is already in use.");
-		}
-		
-		if (classToMark.containsKey(objClass)) {
-			throw new IllegalArgumentException(Str.val(objClass) + " is already registered.");
-		}
+		types.registerIndirect(mark, ionizer);
 	}
 	
 	
@@ -240,10 +262,23 @@ public class Ion {
 	/**
 	 * Load binary from file and cast.
 	 */
+	@SuppressWarnings("unchecked")
 	public static <T> T fromFile(File file) throws IOException
 	{
-		try(InputStream in = new FileInputStream(file)) {
-			return fromStream(in);
+		try(final IonInput inp = new IonInput(file)) {
+			return (T) inp.readObject();
+		}
+	}
+	
+	
+	/**
+	 * Load binary from a memory-mapped file and cast.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T fromMappedFile(File file) throws IOException
+	{
+		try(final IonInput inp = mapFile(file)) {
+			return (T) inp.readObject();
 		}
 	}
 	
@@ -262,17 +297,65 @@ public class Ion {
 	 */
 	public static void toFile(File file, Object obj) throws IOException
 	{
-		try(OutputStream out = new FileOutputStream(file)) {
+		toFile(file, obj, 0);
+	}
+	
+	
+	/**
+	 * Write binary to file with mark, using the given format.
+	 *
+	 * @param file file to write
+	 * @param obj written object
+	 * @param format format flags (FORMAT_*), 0 for the default format
+	 * @throws IOException
+	 */
+	public static void toFile(File file, Object obj, int format) throws IOException
+	{
+		try(IonOutput iout = new IonOutput(file)) {
 			
-			toStream(out, obj);
+			if (format != 0) iout.writeFormat(format);
+			iout.writeObject(obj);
 			
-			out.flush();
+			iout.flush();
 		} catch (final Exception e) {
 			throw new IOException("Error writing to ION file.", e);
 		}
 	}
 	
 	
+	/**
+	 * Write binary to file in the background. The object is encoded right
+	 * away, so later changes don't affect the saved state; the file is written
+	 * by a background thread, to a temporary file which then replaces the
+	 * target.
+	 *
+	 * @param file target file
+	 * @param obj saved object
+	 * @return future completed when the file is written
+	 * @throws IOException if the object could not be encoded
+	 */
+	public static Future<Void> toFileAsync(File file, Object obj) throws IOException
+	{
+		return toFileAsync(file, obj, 0);
+	}
+	
+	
+	/**
+	 * Write binary to file in the background, using the given format.
+	 *
+	 * @param file target file
+	 * @param obj saved object
+	 * @param format format flags (FORMAT_*), 0 for the default format
+	 * @return future completed when the file is written
+	 * @throws IOException if the object could not be encoded
+	 * @see #toFileAsync(File, Object)
+	 */
+	public static Future<Void> toFileAsync(File file, Object obj, int format) throws IOException
+	{
+		return AsyncSaver.save(file, obj, format);
+	}
+	
+	
 	/**
 	 * Load object from stream based on mark, try to cast.
 	 */
@@ -288,13 +371,157 @@ public class Ion {
 	 * Write object to output with a mark.
 	 */
 	public static void toStream(OutputStream out, Object obj) throws IOException
+	{
+		toStream(out, obj, 0);
+	}
+	
+	
+	/**
+	 * Write object to output with a mark, using the given format.
+	 *
+	 * @param out stream to write
+	 * @param obj written object
+	 * @param format format flags (FORMAT_*), 0 for the default format
+	 * @throws IOException
+	 */
+	public static void toStream(OutputStream out, Object obj, int format) throws IOException
 	{
 		try(IonOutput iout = new IonOutput(out)) {
+			if (format != 0) iout.writeFormat(format);
 			iout.writeObject(obj);
 		}
 	}
 	
 	
+	/**
+	 * Encode an object (with a mark) to a byte array.
+	 *
+	 * @param obj written object
+	 * @return the encoded bytes
+	 * @throws IOException
+	 */
+	public static byte[] toBytes(Object obj) throws IOException
+	{
+		return toBytes(obj, 0);
+	}
+	
+	
+	/**
+	 * Encode an object (with a mark) to a byte array, using the given format.<br>
+	 * Objects up to the size of a pooled buffer (64 kB) are encoded to the
+	 * buffer, and copied to an array of the exact size. Larger objects are
+	 * measured using <code>sizeOf()</code>, and encoded again right into an
+	 * array of the exact size, so the data is not copied. An
+	 * {@link IonSized} object (not compressed) is always measured first, as
+	 * that does not encode it.
+	 *
+	 * @param obj written object
+	 * @param format format flags (FORMAT_*), 0 for the default format
+	 * @return the encoded bytes
+	 * @throws IOException
+	 */
+	public static byte[] toBytes(Object obj, int format) throws IOException
+	{
+		final boolean sized = obj instanceof IonSized && (format & FORMAT_DEFLATE) == 0 && ((IonSized) obj).getIonSize(format) >= 0;
+		
+		if (!sized) {
+			final MemoryBufferOutput buffer = new MemoryBufferOutput(BufferPool.DEFAULT_SIZE, true, true);
+			try {
+				encode(buffer, obj, format);
+				
+				return Arrays.copyOf(buffer.array(), buffer.size());
+			} catch (final BufferOverflowException e) {
+				// too large for the buffer, measured below
+			} finally {
+				buffer.release();
+			}
+		}
+		
+		final long size = sizeOf(obj, format);
+		if (size > Integer.MAX_VALUE - 8) throw new IOException("Object too large for a byte array: " + size + " bytes");
+		
+		final byte[] data = new byte[(int) size];
+		
+		final MemoryBufferOutput buffer = new MemoryBufferOutput(data);
+		encode(buffer, obj, format);
+		
+		if (buffer.array() == data && buffer.size() == data.length) return data;
+		return Arrays.copyOf(buffer.array(), buffer.size()); // wrong size given by IonSized
+	}
+	
+	
+	/**
+	 * Encode an object (with a mark) to a buffered output
+	 *
+	 * @param target the output
+	 * @param obj written object
+	 * @param format format flags (FORMAT_*), 0 for the default format
+	 * @throws IOException
+	 */
+	private static void encode(ByteBufferOutput target, Object obj, int format) throws IOException
+	{
+		final IonOutput out = new IonOutput(target);
+		if (format != 0) out.writeFormat(format);
+		out.writeObject(obj);
+		out.close();
+	}
+	
+	
+	/**
+	 * Load an object (with a mark) from a byte array.
+	 *
+	 * @param data encoded object
+	 * @return the object
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T fromBytes(byte[] data) throws IOException
+	{
+		try(final IonInput inp = new IonInput(new WrappedBufferInput(data, 0, data.length))) {
+			return (T) inp.readObject();
+		}
+	}
+	
+	
+	/**
+	 * Get the exact encoded size of an object (with a mark), as written by
+	 * <code>toBytes()</code> or <code>toStream()</code>.
+	 *
+	 * @param obj measured object
+	 * @return size in bytes
+	 * @throws IOException if the object can't be encoded
+	 */
+	public static long sizeOf(Object obj) throws IOException
+	{
+		return sizeOf(obj, 0);
+	}
+	
+	
+	/**
+	 * Get the exact encoded size of an object (with a mark) in the given
+	 * format, including the format header. The object is encoded, but the
+	 * bytes are discarded right away, so nothing proportional to the size is
+	 * allocated. {@link IonSized} objects are not encoded, they give their
+	 * size (unless compressed).
+	 *
+	 * @param obj measured object
+	 * @param format format flags (FORMAT_*), 0 for the default format
+	 * @return size in bytes
+	 * @throws IOException if the object can't be encoded
+	 */
+	public static long sizeOf(Object obj, int format) throws IOException
+	{
+		final CountingOutput counter = new CountingOutput();
+		try {
+			encode(counter, obj, format);
+			
+			return counter.size();
+		} finally {
+			counter.release();
+		}
+	}
+	
+	
 	/**
 	 * Get ion input
 	 *
@@ -309,16 +536,108 @@ public class Ion {
 	
 	
 	/**
-	 * Get ion input
+	 * Get a buffered ion input
 	 *
 	 * @param file file to read
 	 * @return input
 	 * @throws IOException
 	 */
-	@SuppressWarnings("resource")
 	public static IonInput getInput(File file) throws IOException
 	{
-		return new IonInput(new FileInputStream(file));
+		return new IonInput(file);
+	}
+	
+	
+	/**
+	 * Get ion input reading a memory-mapped file. Data is decoded directly
+	 * from the page cache; large files are mapped in windows.
+	 *
+	 * @param file file to read
+	 * @return input
+	 * @throws IOException
+	 */
+	public static IonInput mapFile(File file) throws IOException
+	{
+		return mapFile(file, MappedBufferInput.DEFAULT_WINDOW);
+	}
+	
+	
+	/**
+	 * Get ion input reading a memory-mapped file.
+	 *
+	 * @param file file to read
+	 * @param windowSize size of a mapped window (bytes), max 2 GB
+	 * @return input
+	 * @throws IOException
+	 */
+	@SuppressWarnings("resource")
+	public static IonInput mapFile(File file, long windowSize) throws IOException
+	{
+		final FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			return new IonInput(new MappedBufferInput(channel, windowSize));
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Wait for a task, passing on its exceptions
+	 *
+	 * @param task the task
+	 * @return the task's result
+	 * @throws IOException if the task failed with IOException, or was
+	 *             interrupted
+	 */
+	static <T> T await(Future<T> task) throws IOException
+	{
+		try {
+			return task.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a task.");
+		} catch (final ExecutionException | RuntimeException e) {
+			// ForkJoinPool wraps the task's exception, possibly more than once
+			for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+				if (t instanceof IOException) throw (IOException) t;
+			}
+			
+			if (e instanceof RuntimeException) throw (RuntimeException) e;
+			
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	
+	/**
+	 * Open a container file with individually accessible records, creating
+	 * it if it does not exist.
+	 *
+	 * @param file container file
+	 * @return the container
+	 * @throws IOException
+	 */
+	public static IonContainer openContainer(File file) throws IOException
+	{
+		return new IonContainer(file);
+	}
+	
+	
+	/**
+	 * Open an append-only journal file, creating it if it does not exist.
+	 *
+	 * @param file journal file
+	 * @return the journal
+	 * @throws IOException
+	 */
+	public static IonJournal openJournal(File file) throws IOException
+	{
+		return new IonJournal(file);
 	}
 	
 	
@@ -336,16 +655,16 @@ public class Ion {
 	
 	
 	/**
-	 * Get ion output
+	 * Get a buffered ion output. It must be closed or flushed to write out
+	 * all data.
 	 *
 	 * @param file file to write
 	 * @return output
 	 * @throws IOException
 	 */
-	@SuppressWarnings("resource")
 	public static IonOutput getOutput(File file) throws IOException
 	{
-		return new IonOutput(new FileOutputStream(file));
+		return new IonOutput(file);
 	}
 	
 	
@@ -372,7 +691,8 @@ public class Ion {
 	public static <T extends IonBundled> T unwrapBundled(IonDataBundle bundle, Class<? extends T> objClass) throws IOException
 	{
 		try {
-			final T inst = objClass.newInstance();
+			final IonType type = types.getRegisteredType(objClass);
+			final T inst = (type != null && type.factory != null) ? objClass.cast(type.newInstance()) : objClass.newInstance();
 			inst.load(bundle);
 			return inst;
 		} catch (InstantiationException | IllegalAccessException e) {
@@ -381,75 +701,35 @@ public class Ion {
 	}
 	
 	
-	static Class<?> getClassForMark(int mark)
-	{
-		return markToClass.get(mark);
-	}
-	
-	
-	static IonizerBinary<?> getIonizerBinaryForClass(Class<?> clz)
-	{
-		return ionizersBinary.get(clz);
-	}
-	
-	
-	static IonizerBundled<?> getIonizerBundledForClass(Class<?> clz)
-	{
-		return ionizersBundled.get(clz);
-	}
-	
-	
-	public static int getMark(Object object)
-	{
-		assertRegistered(object);
-		
-		return classToMark.get(object.getClass());
-	}
-	
-	
 	/**
-	 * @return true if the mark is for a registered {@link IonBinary} object
+	 * Get a type from the default registry
+	 *
+	 * @param mark mark 0..255
+	 * @return the type, or null if no type is registered for the mark
 	 */
-	static boolean isMarkForBinary(int mark)
+	static IonType getType(int mark)
 	{
-		if (!markToClass.containsKey(mark)) return false;
-		
-		return IonBinary.class.isAssignableFrom(markToClass.get(mark));
+		return types.getType(mark);
 	}
 	
 	
 	/**
-	 * @return true if the mark is for a registered {@link IonBinary} object
-	 */
-	static boolean isMarkForBundled(int mark)
-	{
-		if (!markToClass.containsKey(mark)) return false;
-		
-		return IonBundled.class.isAssignableFrom(markToClass.get(mark));
-	}
-	
-	
-	/**
-	 * @return true if the mark is for a registered indirectly saved binary
-	 *         object
+	 * Get a type entry from the default registry
+	 *
+	 * @param clazz object class
+	 * @return the type (registered or built-in), or null if not supported
 	 */
-	static boolean isMarkForIndirectBinary(int mark)
+	static IonType getType(Class<?> clazz)
 	{
-		if (!markToClass.containsKey(mark)) return false;
-		
-		return ionizersBinary.containsKey(markToClass.get(mark));
+		return types.getType(clazz);
 	}
 	
 	
-	/**
-	 * @return true if the mark is for a registered indirectly saved bundled
-	 *         object
-	 */
-	static boolean isMarkForIndirectBundled(int mark)
+	public static int getMark(Object object)
 	{
-		if (!markToClass.containsKey(mark)) return false;
+		assertRegistered(object);
 		
-		return ionizersBundled.containsKey(markToClass.get(mark));
+		return getType(object.getClass()).mark;
 	}
 	
 	
@@ -458,7 +738,7 @@ public class Ion {
 	 */
 	static boolean isMarkReserved(int mark)
 	{
-		return mark >= RESERVED_LOW && mark <= RESERVED_HIGH;
+		return IonTypes.isMarkReserved(mark);
 	}
 	
 	
@@ -467,10 +747,7 @@ public class Ion {
 	 */
 	static boolean isRegistered(Object object)
 	{
-		final Class<?> clazz = object.getClass();
-		if (classToMark.containsKey(clazz)) return true;
-		
-		return false;
+		return types.isRegistered(object.getClass());
 	}
 	
 	
@@ -493,34 +770,22 @@ public class Ion {
 	 */
 	public static void reset()
 	{
-		final List<Integer> toRemove = new ArrayList<>();
-		
-		// remove direct
-		for (final Integer mark : markToClass.keySet()) {
-			if (!isMarkReserved(mark)) {
-				toRemove.add(mark);
-			}
-		}
-		
-		for (final int i : toRemove) {
-			
-			final Class<?> clz = markToClass.remove(i);
-			
-			classToMark.remove(clz);
-			ionizersBinary.remove(clz);
-			ionizersBundled.remove(clz);
-		}
+		types.reset();
 	}
 	
 	
 	public static boolean isObjectIndirectBundled(Object obj)
 	{
-		return ionizersBundled.containsKey(obj.getClass());
+		final IonType type = getType(obj.getClass());
+		
+		return type != null && type.kind == IonType.INDIRECT_BUNDLED;
 	}
 	
 	
 	public static boolean isObjectIndirectBinary(Object obj)
 	{
-		return ionizersBinary.containsKey(obj.getClass());
+		final IonType type = getType(obj.getClass());
+		
+		return type != null && type.kind == IonType.INDIRECT_BINARY;
 	}
 }
@@ -13,7 +13,10 @@ import java.io.IOException;
 public interface IonBinary {
 	
 	/**
-	 * Load data from the input stream.
+	 * Load data from the input stream. The instance may be a reused one (see
+	 * {@link IonInput#readBinary(IonBinary)}), so all fields should be
+	 * overwritten; arrays can be filled in place using
+	 * <code>in.readInts(array, offset)</code> etc.
 	 *
 	 * @param in input stream
 	 * @throws IOException
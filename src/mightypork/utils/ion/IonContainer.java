@@ -0,0 +1,376 @@
+package mightypork.utils.ion;
+
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import mightypork.utils.exceptions.CorruptDataException;
+import mightypork.utils.logging.Log;
+
+
+/**
+ * File holding many independently stored ION objects ("records") under string
+ * keys. A record can be read without decoding anything else in the file, and
+ * replaced without rewriting the other records.<br>
+ * <br>
+ * Layout: header, records, index (key to offset and length of a record), and a
+ * trailer pointing to the index. Written records are appended to the end of
+ * the file, and a new index is appended on flush / close. When opened, the file
+ * is read up to the last complete index - records written after it (ie. when
+ * the container was not closed) are discarded, and the earlier state is kept.
+ * Space of replaced records and old indexes is not reclaimed.<br>
+ * <br>
+ * A container is not thread-safe.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public class IonContainer implements Closeable, Flushable {
+	
+	private static final int MAGIC = 0x494F4E43; // "IONC"
+	private static final int VERSION = 1;
+	
+	private static final int HEADER_SIZE = 5;
+	private static final int TRAILER_SIZE = 12;
+	
+	/** Bytes read at once when looking for the last index */
+	private static final int SCAN_CHUNK = 64 * 1024;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	
+	/** Format of written records */
+	private final int format;
+	
+	private final Map<String, Record> index = new LinkedHashMap<>();
+	private boolean dirty;
+	
+	/** File position where the next data is written */
+	private long end;
+	
+	/** Encoding buffer, reused by writes */
+	private final MemoryBufferOutput scratch = new MemoryBufferOutput(1024);
+	
+	
+	private static class Record {
+		
+		final long offset;
+		final int length;
+		
+		
+		public Record(long offset, int length)
+		{
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	
+	/**
+	 * Open a container, creating it if the file does not exist.
+	 *
+	 * @param file container file
+	 * @throws IOException if the file can't be opened, or is not a container
+	 */
+	public IonContainer(File file) throws IOException
+	{
+		this(file, 0);
+	}
+	
+	
+	/**
+	 * Open a container, creating it if the file does not exist.
+	 *
+	 * @param file container file
+	 * @param format format flags used for written records (see
+	 *            {@link IonOutput#writeFormat(int)})
+	 * @throws IOException if the file can't be opened, or is not a container
+	 */
+	public IonContainer(File file, int format) throws IOException
+	{
+		this.format = format;
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		
+		try {
+			if (channel.size() == 0) {
+				create();
+			} else {
+				readIndex(file);
+			}
+		} catch (final IOException | RuntimeException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+	
+	
+	private void create() throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.put((byte) VERSION);
+		header.flip();
+		writeFully(header, 0);
+		
+		end = HEADER_SIZE;
+		dirty = true;
+		flush();
+	}
+	
+	
+	private void readIndex(File path) throws IOException
+	{
+		final long size = channel.size();
+		if (size < HEADER_SIZE + TRAILER_SIZE) throw new CorruptDataException("Not an ION container.");
+		
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, 0);
+		if (header.getInt() != MAGIC) throw new CorruptDataException("Not an ION container.");
+		if (header.get() != VERSION) throw new CorruptDataException("Unsupported ION container version.");
+		
+		// the last trailer, normally at the very end
+		final ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK);
+		long chunkEnd = size;
+		
+		while (chunkEnd >= HEADER_SIZE + TRAILER_SIZE) {
+			final long chunkStart = Math.max(HEADER_SIZE, chunkEnd - SCAN_CHUNK);
+			chunk.clear();
+			chunk.limit((int) (chunkEnd - chunkStart));
+			readFully(chunk, chunkStart);
+			
+			for (int i = chunk.limit() - 4; i >= 0; i--) {
+				if (chunk.getInt(i) != MAGIC) continue;
+				
+				final long trailerEnd = chunkStart + i + 4;
+				if (!loadIndex(trailerEnd)) continue;
+				
+				if (trailerEnd < size) {
+					Log.w("Discarding unindexed tail of ION container " + path + " (" + (size - trailerEnd) + " bytes).");
+					channel.truncate(trailerEnd);
+				}
+				
+				end = trailerEnd;
+				return;
+			}
+			
+			chunkEnd = chunkStart + 3; // a trailer may cross the chunk start
+		}
+		
+		throw new CorruptDataException("ION container index is missing.");
+	}
+	
+	
+	/**
+	 * Load the index pointed to by a trailer
+	 *
+	 * @param trailerEnd file position where the trailer ends
+	 * @return true if loaded, false if there is no valid index
+	 * @throws IOException on read error
+	 */
+	private boolean loadIndex(long trailerEnd) throws IOException
+	{
+		final long trailerOffset = trailerEnd - TRAILER_SIZE;
+		if (trailerOffset < HEADER_SIZE) return false;
+		
+		final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		readFully(trailer, trailerOffset);
+		final long indexOffset = trailer.getLong();
+		if (trailer.getInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > trailerOffset) return false;
+		
+		final Map<String, Record> loaded = new LinkedHashMap<>();
+		
+		final ChannelRegionInput region = new ChannelRegionInput(channel, indexOffset, trailerOffset - indexOffset, BufferPool.DEFAULT_SIZE);
+		try(final IonInput in = new IonInput(region)) {
+			final int count = in.readInt();
+			if (count < 0) return false;
+			
+			for (int i = 0; i < count; i++) {
+				final String key = in.readString();
+				final long offset = in.readLong();
+				final int length = in.readInt();
+				
+				if (offset < HEADER_SIZE || length < 0 || offset + length > indexOffset) return false;
+				
+				loaded.put(key, new Record(offset, length));
+			}
+			
+			if (region.position() != trailerOffset - indexOffset) return false;
+		} catch (final CorruptDataException | EOFException | RuntimeException e) {
+			return false; // bytes of a record looking like a trailer
+		}
+		
+		index.putAll(loaded);
+		return true;
+	}
+	
+	
+	/**
+	 * @return keys of all records (read-only view)
+	 */
+	public Set<String> keys()
+	{
+		return Collections.unmodifiableSet(index.keySet());
+	}
+	
+	
+	/**
+	 * @param key record key
+	 * @return true if there is a record with the key
+	 */
+	public boolean contains(String key)
+	{
+		return index.containsKey(key);
+	}
+	
+	
+	/**
+	 * Get encoded size of a record
+	 *
+	 * @param key record key
+	 * @return size in bytes, or -1 if there's no such record
+	 */
+	public int sizeOf(String key)
+	{
+		final Record record = index.get(key);
+		return record == null ? -1 : record.length;
+	}
+	
+	
+	/**
+	 * Read a record. Only the record's bytes are read from the file.
+	 *
+	 * @param key record key
+	 * @return the object, or null if there's no such record
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T read(String key) throws IOException
+	{
+		final Record record = index.get(key);
+		if (record == null) return null;
+		
+		try(final IonInput in = new IonInput(new ChannelRegionInput(channel, record.offset, record.length, BufferPool.DEFAULT_SIZE))) {
+			return (T) in.readObject();
+		}
+	}
+	
+	
+	/**
+	 * Write a record, replacing any previous record with the same key. The
+	 * record is appended to the file; the index is updated on flush.
+	 *
+	 * @param key record key
+	 * @param obj stored object
+	 * @throws IOException
+	 */
+	public void write(String key, Object obj) throws IOException
+	{
+		if (key == null) throw new NullPointerException("Key must not be null.");
+		
+		scratch.reset();
+		
+		final IonOutput out = new IonOutput(scratch);
+		if (format != 0) out.writeFormat(format);
+		out.writeObject(obj);
+		out.close(); // finishes compressed data
+		
+		final int length = scratch.size();
+		writeFully(ByteBuffer.wrap(scratch.array(), 0, length), end);
+		
+		index.put(key, new Record(end, length));
+		end += length;
+		dirty = true;
+	}
+	
+	
+	/**
+	 * Remove a record. Takes effect on flush.
+	 *
+	 * @param key record key
+	 * @return true if there was such record
+	 */
+	public boolean remove(String key)
+	{
+		if (index.remove(key) == null) return false;
+		
+		dirty = true;
+		return true;
+	}
+	
+	
+	/**
+	 * Write the index, if there were any changes, and force the file to the
+	 * storage device.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if (!dirty) return;
+		
+		channel.force(false); // records before the index pointing to them
+		
+		scratch.reset();
+		
+		final IonOutput out = new IonOutput(scratch);
+		out.writeInt(index.size());
+		for (final Map.Entry<String, Record> e : index.entrySet()) {
+			out.writeString(e.getKey());
+			out.writeLong(e.getValue().offset);
+			out.writeInt(e.getValue().length);
+		}
+		
+		out.writeLong(end);
+		out.writeInt(MAGIC);
+		
+		final int length = scratch.size();
+		writeFully(ByteBuffer.wrap(scratch.array(), 0, length), end);
+		
+		channel.force(false);
+		
+		end += length;
+		dirty = false;
+	}
+	
+	
+	/**
+	 * Write the index (if changed) and close the file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try {
+			flush();
+		} finally {
+			file.close();
+		}
+	}
+	
+	
+	private void writeFully(ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+	
+	
+	private void readFully(ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining()) {
+			final int n = channel.read(buf, position);
+			if (n < 0) throw new CorruptDataException("Unexpected end of file.");
+			position += n;
+		}
+		buf.flip();
+	}
+}
@@ -5,19 +5,47 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import mightypork.utils.exceptions.CorruptDataException;
 
 
 /**
  * Ion data bundle - simplified Map with facilities for storing maps and
- * sequences.
+ * sequences.<br>
+ * Primitive values are stored unboxed, and can be read without allocation
+ * using the typed getters (ie. <code>getInt()</code>).<br>
+ * The bundle tracks values changed since it was loaded (or marked clean), so
+ * that only a delta can be saved, and applied to a copy of the old state.
  *
  * @author Ondřej Hruška (MightyPork)
  */
 public class IonDataBundle implements IonBinary {
 	
+	/** Object values */
 	private final Map<String, Object> backingMap = new HashMap<>();
+	/** Primitive values, kept separately to avoid boxing */
+	private final PrimitiveSlots primitives = new PrimitiveSlots();
+	
+	/** Delta entry: value set */
+	private static final int DELTA_SET = 1;
+	/** Delta entry: value removed */
+	private static final int DELTA_REMOVE = 2;
+	/** Delta entry: delta of a nested bundle */
+	private static final int DELTA_NESTED = 3;
+	/** Delta entry: deltas of bundles in a sequence or map */
+	private static final int DELTA_ELEMENTS = 4;
+	
+	/** Keys put since last clean state (null if none) */
+	private Set<String> changed;
+	/** Keys removed since last clean state (null if none) */
+	private Set<String> removed;
+	/** Set while loading, to skip change tracking */
+	private boolean loading;
 	
 	
 	/**
@@ -45,7 +73,7 @@ public class IonDataBundle implements IonBinary {
 	 */
 	public boolean containsKey(Object key)
 	{
-		return backingMap.containsKey(key);
+		return primitives.find(key) != -1 || backingMap.containsKey(key);
 	}
 	
 	
@@ -57,6 +85,15 @@ public class IonDataBundle implements IonBinary {
 	 */
 	public boolean containsValue(Object value)
 	{
+		if (value != null) {
+			final IonType type = Ion.getType(value.getClass());
+			if (type != null && PrimitiveSlots.isPrimitive(type.mark)) {
+				// boxed primitives are always stored unboxed
+				return primitives.containsValue(type.mark, PrimitiveSlots.toBits(type.mark, value));
+			}
+		}
+		
+		resolveAll();
 		return backingMap.containsValue(value);
 	}
 	
@@ -160,10 +197,16 @@ public class IonDataBundle implements IonBinary {
 	 * @param fallback value
 	 * @return value
 	 */
+	@SuppressWarnings("unchecked")
 	public <T> T get(String key, T fallback)
 	{
 		try {
-			final T itm = (T) backingMap.get(key);
+			final int slot = primitives.find(key);
+			if (slot != -1) {
+				return (T) PrimitiveSlots.box(primitives.markAt(slot), primitives.bitsAt(slot));
+			}
+			
+			final T itm = (T) resolve(key, backingMap.get(key));
 			if (itm == null) return fallback;
 			return itm;
 		} catch (final ClassCastException e) {
@@ -184,119 +227,269 @@ public class IonDataBundle implements IonBinary {
 	}
 	
 	
+	/**
+	 * Find a slot with primitive value of one of the given types.
+	 *
+	 * @param key key
+	 * @param lowMark lowest accepted primitive mark
+	 * @param highMark highest accepted primitive mark
+	 * @return slot, or -1 if not found or of other type
+	 */
+	private int findPrimitive(String key, int lowMark, int highMark)
+	{
+		final int slot = primitives.find(key);
+		if (slot == -1) return -1;
+		
+		final int mark = primitives.markAt(slot);
+		if (mark < lowMark || mark > highMark) return -1;
+		
+		return slot;
+	}
+	
+	
+	/**
+	 * Get a boolean value, without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public boolean getBoolean(String key, boolean fallback)
+	{
+		final int slot = findPrimitive(key, Ion.BOOLEAN, Ion.BOOLEAN);
+		return slot == -1 ? fallback : primitives.bitsAt(slot) != 0;
+	}
+	
+	
+	/**
+	 * Get a byte value, without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public byte getByte(String key, byte fallback)
+	{
+		final int slot = findPrimitive(key, Ion.BYTE, Ion.BYTE);
+		return slot == -1 ? fallback : (byte) primitives.bitsAt(slot);
+	}
+	
+	
+	/**
+	 * Get a char value, without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public char getChar(String key, char fallback)
+	{
+		final int slot = findPrimitive(key, Ion.CHAR, Ion.CHAR);
+		return slot == -1 ? fallback : (char) primitives.bitsAt(slot);
+	}
+	
+	
+	/**
+	 * Get a short value (or a byte), without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public short getShort(String key, short fallback)
+	{
+		final int slot = findPrimitive(key, Ion.BYTE, Ion.SHORT);
+		if (slot == -1 || primitives.markAt(slot) == Ion.CHAR) return fallback;
+		
+		return (short) primitives.bitsAt(slot);
+	}
+	
+	
+	/**
+	 * Get an int value (or a byte, char or short), without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public int getInt(String key, int fallback)
+	{
+		final int slot = findPrimitive(key, Ion.BYTE, Ion.INT);
+		return slot == -1 ? fallback : (int) primitives.bitsAt(slot);
+	}
+	
+	
+	/**
+	 * Get a long value (or a byte, char, short or int), without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public long getLong(String key, long fallback)
+	{
+		final int slot = findPrimitive(key, Ion.BYTE, Ion.LONG);
+		return slot == -1 ? fallback : primitives.bitsAt(slot);
+	}
+	
+	
+	/**
+	 * Get a float value, without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public float getFloat(String key, float fallback)
+	{
+		final int slot = findPrimitive(key, Ion.FLOAT, Ion.FLOAT);
+		return slot == -1 ? fallback : Float.intBitsToFloat((int) primitives.bitsAt(slot));
+	}
+	
+	
+	/**
+	 * Get a double value (or a float), without boxing.
+	 *
+	 * @param key key
+	 * @param fallback value returned if not found or of other type
+	 * @return value
+	 */
+	public double getDouble(String key, double fallback)
+	{
+		final int slot = findPrimitive(key, Ion.FLOAT, Ion.DOUBLE);
+		if (slot == -1) return fallback;
+		
+		final long bits = primitives.bitsAt(slot);
+		return primitives.markAt(slot) == Ion.FLOAT ? Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits);
+	}
+	
+	
+	/**
+	 * Put an object. Its type must be supported by the default type registry,
+	 * or be an {@link IonBinary} or {@link IonBundled} (which can be registered
+	 * in the registry the bundle is written with).
+	 *
+	 * @param key key
+	 * @param value value
+	 * @throws IllegalArgumentException if the type is not supported
+	 */
 	public void put(String key, Object value)
 	{
 		if (key == null || value == null) return;
-		if (!Ion.isRegistered(value)) throw new IllegalArgumentException("Cannot add to bundle, not registered: " + value);
-		backingMap.put(key, value);
+		
+		if (Ion.getType(value.getClass()) == null && !(value instanceof IonBinary) && !(value instanceof IonBundled)) {
+			throw new IllegalArgumentException("Cannot add to bundle, not supported: " + value);
+		}
+		
+		putDecoded(key, value);
 	}
 	
 	
 	public void put(String key, boolean value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.BOOLEAN, value ? 1 : 0);
 	}
 	
 	
 	public void put(String key, byte value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.BYTE, value);
 	}
 	
 	
 	public void put(String key, char value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.CHAR, value);
 	}
 	
 	
 	public void put(String key, short value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.SHORT, value);
 	}
 	
 	
 	public void put(String key, int value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.INT, value);
 	}
 	
 	
 	public void put(String key, long value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.LONG, value);
 	}
 	
 	
 	public void put(String key, double value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.DOUBLE, Double.doubleToRawLongBits(value));
 	}
 	
 	
 	public void put(String key, float value)
 	{
-		backingMap.put(key, value);
+		putPrimitive(key, Ion.FLOAT, Float.floatToRawIntBits(value));
 	}
 	
 	
 	public void put(String key, String value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, boolean[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, char[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, short[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, int[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, long[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, double[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, float[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, String[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
 	public void put(String key, Object[] value)
 	{
-		backingMap.put(key, value);
+		putObject(key, value);
 	}
 	
 	
@@ -309,7 +502,7 @@ public class IonDataBundle implements IonBinary {
 	@SuppressWarnings("rawtypes")
 	public void putSequence(String key, Collection c)
 	{
-		backingMap.put(key, new IonSequenceWrapper(c));
+		putObject(key, new IonSequenceWrapper(c));
 	}
 	
 	
@@ -322,21 +515,313 @@ public class IonDataBundle implements IonBinary {
 	@SuppressWarnings("rawtypes")
 	public void putMap(String key, Map m)
 	{
-		backingMap.put(key, new IonMapWrapper(m));
+		putObject(key, new IonMapWrapper(m));
+	}
+	
+	
+	private void putObject(String key, Object value)
+	{
+		primitives.remove(key);
+		backingMap.put(key, value);
+		markChanged(key);
+	}
+	
+	
+	/**
+	 * Put a primitive value
+	 *
+	 * @param key key
+	 * @param mark mark of the primitive type
+	 * @param bits value bits
+	 */
+	void putPrimitive(String key, int mark, long bits)
+	{
+		if (key == null) return;
+		
+		backingMap.remove(key);
+		primitives.put(key, mark, bits);
+		markChanged(key);
+	}
+	
+	
+	/**
+	 * Put a loaded value; boxed primitives are unboxed.
+	 *
+	 * @param key key
+	 * @param value value
+	 */
+	void putDecoded(String key, Object value)
+	{
+		if (value != null) {
+			final IonType type = Ion.getType(value.getClass());
+			if (type != null && PrimitiveSlots.isPrimitive(type.mark)) {
+				putPrimitive(key, type.mark, PrimitiveSlots.toBits(type.mark, value));
+				return;
+			}
+		}
+		
+		putObject(key, value);
 	}
 	
 	
 	@Override
 	public void load(IonInput in) throws IOException
 	{
-		in.readMap(backingMap);
+		loading = true;
+		try {
+			clear();
+			while (in.hasNextEntry()) {
+				final String key = (String) in.readObject();
+				in.readBundleValue(this, key);
+			}
+		} catch (final ClassCastException e) {
+			throw new CorruptDataException("Unexpected key type in bundle.", e);
+		} finally {
+			loading = false;
+			changed = null;
+			removed = null;
+		}
 	}
 	
 	
 	@Override
 	public void save(IonOutput out) throws IOException
 	{
-		out.writeMap(backingMap);
+		for (int i = 0; i < primitives.capacity(); i++) {
+			final String key = primitives.keyAt(i);
+			if (key == null) continue;
+			
+			out.startEntry();
+			out.writeObject(key);
+			out.writeBundlePrimitive(primitives.markAt(i), primitives.bitsAt(i));
+		}
+		
+		for (final Entry<String, Object> e : backingMap.entrySet()) {
+			if (e.getValue() == null) continue;
+			
+			out.startEntry();
+			out.writeObject(e.getKey());
+			out.writeBundleValue(e.getValue());
+		}
+		
+		out.endSequence();
+	}
+	
+	
+	private void markChanged(String key)
+	{
+		if (loading) return;
+		
+		if (changed == null) changed = new HashSet<>();
+		changed.add(key);
+		if (removed != null) removed.remove(key);
+	}
+	
+	
+	private void markRemoved(String key)
+	{
+		if (loading) return;
+		
+		if (removed == null) removed = new HashSet<>();
+		removed.add(key);
+		if (changed != null) changed.remove(key);
+	}
+	
+	
+	/**
+	 * Check if the bundle was modified since it was loaded or marked clean.
+	 * Nested bundles, sequences and maps are checked too.
+	 *
+	 * @return true if modified
+	 */
+	public boolean isDirty()
+	{
+		if ((changed != null && !changed.isEmpty()) || (removed != null && !removed.isEmpty())) return true;
+		
+		for (final Object value : backingMap.values()) {
+			if (isDirtyValue(value)) return true;
+		}
+		
+		return false;
+	}
+	
+	
+	private static boolean isDirtyValue(Object value)
+	{
+		if (value instanceof IonDataBundle) return ((IonDataBundle) value).isDirty();
+		if (value instanceof IonSequenceWrapper) return ((IonSequenceWrapper) value).isDirty();
+		if (value instanceof IonMapWrapper) return ((IonMapWrapper) value).isDirty();
+		return false;
+	}
+	
+	
+	/**
+	 * Mark the current state as clean, ie. after it was saved. Nested bundles,
+	 * sequences and maps are marked too.
+	 */
+	public void markClean()
+	{
+		changed = null;
+		removed = null;
+		
+		for (final Object value : backingMap.values()) {
+			if (value instanceof IonDataBundle) {
+				((IonDataBundle) value).markClean();
+			} else if (value instanceof IonSequenceWrapper) {
+				((IonSequenceWrapper) value).markClean();
+			} else if (value instanceof IonMapWrapper) {
+				((IonMapWrapper) value).markClean();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Write changes made since the bundle was loaded or marked clean. Changes
+	 * in nested bundles are written as nested deltas, also for bundles in
+	 * sequences and maps; a sequence or map changed otherwise (or with
+	 * elements which can't be tracked) is written whole.<br>
+	 * The bundle is not marked clean.
+	 *
+	 * @param out output
+	 * @throws IOException
+	 */
+	public void writeDelta(IonOutput out) throws IOException
+	{
+		if (removed != null) {
+			for (final String key : removed) {
+				out.startEntry();
+				out.writeObject(key);
+				out.writeIntByte(DELTA_REMOVE);
+			}
+		}
+		
+		for (int i = 0; i < primitives.capacity(); i++) {
+			final String key = primitives.keyAt(i);
+			if (key == null || changed == null || !changed.contains(key)) continue;
+			
+			out.startEntry();
+			out.writeObject(key);
+			out.writeIntByte(DELTA_SET);
+			out.writeBundlePrimitive(primitives.markAt(i), primitives.bitsAt(i));
+		}
+		
+		for (final Entry<String, Object> e : backingMap.entrySet()) {
+			final Object value = e.getValue();
+			if (value == null) continue;
+			
+			final boolean set = changed != null && changed.contains(e.getKey());
+			if (!set && !isDirtyValue(value)) continue;
+			
+			out.startEntry();
+			out.writeObject(e.getKey());
+			
+			if (!set && value instanceof IonDataBundle) {
+				out.writeIntByte(DELTA_NESTED);
+				((IonDataBundle) value).writeDelta(out);
+			} else if (!set && value instanceof IonSequenceWrapper && !((IonSequenceWrapper) value).isChanged()) {
+				out.writeIntByte(DELTA_ELEMENTS);
+				((IonSequenceWrapper) value).writeDelta(out);
+			} else if (!set && value instanceof IonMapWrapper && !((IonMapWrapper) value).isChanged()) {
+				out.writeIntByte(DELTA_ELEMENTS);
+				((IonMapWrapper) value).writeDelta(out);
+			} else {
+				out.writeIntByte(DELTA_SET);
+				out.writeBundleValue(value);
+			}
+		}
+		
+		out.endSequence();
+	}
+	
+	
+	/**
+	 * Apply a delta written by <code>writeDelta()</code> to this bundle. The
+	 * applied changes are tracked as changes of this bundle.
+	 *
+	 * @param in input
+	 * @throws IOException
+	 */
+	public void applyDelta(IonInput in) throws IOException
+	{
+		try {
+			while (in.hasNextEntry()) {
+				final String key = (String) in.readObject();
+				final int op = in.readIntByte();
+				
+				switch (op) {
+					case DELTA_SET:
+						in.readBundleValue(this, key);
+						break;
+						
+					case DELTA_REMOVE:
+						remove(key);
+						break;
+						
+					case DELTA_NESTED:
+						final Object existing = get(key);
+						final IonDataBundle nested;
+						if (existing instanceof IonDataBundle) {
+							nested = (IonDataBundle) existing;
+						} else {
+							nested = new IonDataBundle();
+							putObject(key, nested);
+						}
+						nested.applyDelta(in);
+						break;
+						
+					case DELTA_ELEMENTS:
+						final Object wrapper = get(key);
+						if (wrapper instanceof IonSequenceWrapper) {
+							((IonSequenceWrapper) wrapper).applyDelta(in);
+						} else if (wrapper instanceof IonMapWrapper) {
+							((IonMapWrapper) wrapper).applyDelta(in);
+						} else {
+							throw new CorruptDataException("Element delta for a value which is not a sequence or map: " + key);
+						}
+						break;
+						
+					default:
+						throw new CorruptDataException("Invalid bundle delta entry: " + op);
+				}
+			}
+		} catch (final ClassCastException e) {
+			throw new CorruptDataException("Unexpected key or value type in bundle delta.", e);
+		}
+	}
+	
+	
+	/**
+	 * Decode a lazily loaded value, if it's still encoded.
+	 *
+	 * @param key the value's key
+	 * @param value value from the backing map
+	 * @return the decoded value
+	 */
+	private Object resolve(Object key, Object value)
+	{
+		if (!(value instanceof IonSlice)) return value;
+		
+		try {
+			final Object decoded = ((IonSlice) value).decode();
+			backingMap.put((String) key, decoded);
+			return decoded;
+		} catch (final IOException e) {
+			throw new RuntimeException("Could not decode bundle value: " + key, e);
+		}
+	}
+	
+	
+	/**
+	 * Decode all lazily loaded values
+	 */
+	private void resolveAll()
+	{
+		for (final Entry<String, Object> e : backingMap.entrySet()) {
+			if (e.getValue() instanceof IonSlice) {
+				resolve(e.getKey(), e.getValue());
+			}
+		}
 	}
 	
 	
@@ -347,7 +832,7 @@ public class IonDataBundle implements IonBinary {
 	 */
 	public int size()
 	{
-		return backingMap.size();
+		return backingMap.size() + primitives.size();
 	}
 	
 	
@@ -358,7 +843,7 @@ public class IonDataBundle implements IonBinary {
 	 */
 	public boolean isEmpty()
 	{
-		return backingMap.isEmpty();
+		return size() == 0;
 	}
 	
 	
@@ -367,7 +852,17 @@ public class IonDataBundle implements IonBinary {
 	 */
 	public void clear()
 	{
+		if (!loading) {
+			for (final String key : backingMap.keySet()) {
+				markRemoved(key);
+			}
+			for (int i = 0; i < primitives.capacity(); i++) {
+				if (primitives.keyAt(i) != null) markRemoved(primitives.keyAt(i));
+			}
+		}
+		
 		backingMap.clear();
+		primitives.clear();
 	}
 	
 	
@@ -379,6 +874,20 @@ public class IonDataBundle implements IonBinary {
 	 */
 	public Object remove(Object key)
 	{
+		final int slot = primitives.find(key);
+		if (slot != -1) {
+			final Object boxed = PrimitiveSlots.box(primitives.markAt(slot), primitives.bitsAt(slot));
+			primitives.remove(key);
+			markRemoved((String) key);
+			return boxed;
+		}
+		
+		if (!backingMap.containsKey(key)) return null;
+		
+		final Object value = backingMap.get(key);
+		if (value instanceof IonSlice) resolve(key, value);
+		
+		markRemoved((String) key);
 		return backingMap.remove(key);
 	}
 	
@@ -390,23 +899,46 @@ public class IonDataBundle implements IonBinary {
 	 */
 	public void putAll(IonDataBundle anotherBundle)
 	{
-		backingMap.putAll(anotherBundle.backingMap);
+		final PrimitiveSlots other = anotherBundle.primitives;
+		for (int i = 0; i < other.capacity(); i++) {
+			if (other.keyAt(i) != null) putPrimitive(other.keyAt(i), other.markAt(i), other.bitsAt(i));
+		}
+		
+		for (final Entry<String, Object> e : anotherBundle.backingMap.entrySet()) {
+			putObject(e.getKey(), e.getValue());
+		}
 	}
 	
 	
 	@Override
 	public String toString()
 	{
-		return backingMap.toString();
+		resolveAll();
+		
+		final StringBuilder sb = new StringBuilder("{");
+		for (final Entry<String, Object> e : backingMap.entrySet()) {
+			if (sb.length() > 1) sb.append(", ");
+			sb.append(e.getKey()).append('=').append(e.getValue());
+		}
+		for (int i = 0; i < primitives.capacity(); i++) {
+			final String key = primitives.keyAt(i);
+			if (key == null) continue;
+			
+			if (sb.length() > 1) sb.append(", ");
+			sb.append(key).append('=').append(PrimitiveSlots.box(primitives.markAt(i), primitives.bitsAt(i)));
+		}
+		return sb.append('}').toString();
 	}
 	
 	
 	@Override
 	public int hashCode()
 	{
+		resolveAll();
+		
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((backingMap == null) ? 0 : backingMap.hashCode());
+		result = prime * result + backingMap.hashCode() + primitives.hashCode();
 		return result;
 	}
 	
@@ -418,9 +950,11 @@ public class IonDataBundle implements IonBinary {
 		if (obj == null) return false;
 		if (!(obj instanceof IonDataBundle)) return false;
 		final IonDataBundle other = (IonDataBundle) obj;
-		if (backingMap == null) {
-			if (other.backingMap != null) return false;
-		} else if (!backingMap.equals(other.backingMap)) return false;
-		return true;
+		
+		if (!primitives.equals(other.primitives)) return false;
+		
+		resolveAll();
+		other.resolveAll();
+		return backingMap.equals(other.backingMap);
 	}
 }
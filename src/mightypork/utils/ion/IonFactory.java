@@ -0,0 +1,21 @@
+package mightypork.utils.ion;
+
+
+/**
+ * Creates empty instances of a registered type, to be filled by loading.
+ * Can be given to {@link Ion#register(int, Class, IonFactory)} to avoid
+ * reflection when loading many objects, or to register a type without an
+ * implicit constructor.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ * @param <T> created type
+ */
+public interface IonFactory<T> {
+	
+	/**
+	 * Create a new instance
+	 *
+	 * @return the instance
+	 */
+	T create();
+}
@@ -0,0 +1,211 @@
+package mightypork.utils.ion;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+import mightypork.utils.exceptions.CorruptDataException;
+
+
+/**
+ * Reader of ION frames (length-prefixed objects, written by
+ * {@link IonFrameWriter}) from a channel, which can be in non-blocking mode.
+ * Received bytes are accumulated in a buffer until a whole frame is available,
+ * so partial frames never block the reading thread.<br>
+ * <br>
+ * Typical use with a selector: when the channel is readable, call
+ * <code>read()</code>, and then take all complete frames using
+ * <code>hasFrame()</code> and <code>nextFrame()</code>. With a blocking
+ * channel, <code>read()</code> waits until a whole frame is buffered.<br>
+ * <br>
+ * A reader is not thread-safe.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public class IonFrameReader {
+	
+	/** Default max size of a frame (without the length) */
+	public static final int DEFAULT_MAX_FRAME = 16 * 1024 * 1024;
+	
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+	
+	private final ReadableByteChannel channel;
+	private final int maxFrame;
+	
+	/** Capacity the buffer returns to when emptied */
+	private final int initialCapacity;
+	
+	private IonTypes types = Ion.getDefaultTypes();
+	
+	/** Buffer in write mode; received data is between start and position */
+	private ByteBuffer buffer;
+	private int start;
+	
+	
+	/**
+	 * Create a reader with the default max frame size.
+	 *
+	 * @param channel channel to read
+	 */
+	public IonFrameReader(ReadableByteChannel channel)
+	{
+		this(channel, DEFAULT_MAX_FRAME);
+	}
+	
+	
+	/**
+	 * Create a reader.
+	 *
+	 * @param channel channel to read
+	 * @param maxFrame max size of a frame; a longer frame is treated as
+	 *            corrupt data
+	 */
+	public IonFrameReader(ReadableByteChannel channel, int maxFrame)
+	{
+		if (maxFrame < 1 || maxFrame > Integer.MAX_VALUE - 4) throw new IllegalArgumentException("Invalid max frame size: " + maxFrame);
+		
+		this.channel = channel;
+		this.maxFrame = maxFrame;
+		this.initialCapacity = Math.min(INITIAL_CAPACITY, maxFrame + 4);
+		this.buffer = ByteBuffer.allocate(initialCapacity);
+	}
+	
+	
+	/**
+	 * Set the type registry used to load objects. By default, the registry of
+	 * {@link Ion} is used.
+	 *
+	 * @param types type registry
+	 */
+	public void setTypes(IonTypes types)
+	{
+		if (types == null) throw new NullPointerException("Types must not be null.");
+		
+		this.types = types;
+	}
+	
+	
+	/**
+	 * Read from the channel. A non-blocking channel is read until no more
+	 * bytes are available, or until the buffer is full of complete frames. A
+	 * blocking channel is read only until a whole frame is buffered (nothing
+	 * is read if there already is one), so the call does not wait for data
+	 * beyond it.
+	 *
+	 * @return number of bytes read, -1 if the end of stream was reached and
+	 *         nothing was read
+	 * @throws IOException on read error, or if a frame is too long
+	 */
+	public int read() throws IOException
+	{
+		final boolean blocking = !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+		
+		int total = 0;
+		
+		while (!(blocking && hasFrame()) && makeRoom()) {
+			final int n = channel.read(buffer);
+			if (n < 0) return total == 0 ? -1 : total;
+			if (n == 0) return total;
+			
+			total += n;
+		}
+		
+		return total;
+	}
+	
+	
+	/**
+	 * Make room for reading: discard consumed bytes, and grow the buffer if
+	 * the frame being received does not fit.
+	 *
+	 * @return false if the buffer is full of complete frames
+	 */
+	private boolean makeRoom() throws IOException
+	{
+		if (buffer.hasRemaining()) return true;
+		
+		if (start > 0) {
+			buffer.flip();
+			buffer.position(start);
+			buffer.compact();
+			start = 0;
+			
+			if (buffer.hasRemaining()) return true;
+		}
+		
+		if (hasFrame()) return false;
+		
+		// the buffer holds just a part of one frame
+		final int needed = 4 + frameLength();
+		final ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, Math.min(buffer.capacity() * 2, maxFrame + 4)));
+		buffer.flip();
+		grown.put(buffer);
+		buffer = grown;
+		return true;
+	}
+	
+	
+	/**
+	 * Get length of the frame at the start of the buffered data
+	 *
+	 * @return length
+	 * @throws CorruptDataException if the length is invalid
+	 */
+	private int frameLength() throws CorruptDataException
+	{
+		final int length = buffer.getInt(start);
+		if (length < 0 || length > maxFrame) throw new CorruptDataException("Invalid frame length: " + length);
+		return length;
+	}
+	
+	
+	/**
+	 * @return true if a whole frame is buffered
+	 * @throws CorruptDataException if the next frame has invalid length
+	 */
+	public boolean hasFrame() throws CorruptDataException
+	{
+		final int available = buffer.position() - start;
+		if (available < 4) return false;
+		
+		return available >= 4 + frameLength();
+	}
+	
+	
+	/**
+	 * Decode the next buffered frame.
+	 *
+	 * @return the object
+	 * @throws IOException if the frame can't be decoded
+	 * @throws IllegalStateException if there is no whole frame buffered
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T nextFrame() throws IOException
+	{
+		if (!hasFrame()) throw new IllegalStateException("No complete frame.");
+		
+		final int length = frameLength();
+		
+		final ByteBuffer frame = buffer.duplicate();
+		frame.limit(start + 4 + length);
+		frame.position(start + 4);
+		
+		start += 4 + length;
+		if (start == buffer.position()) {
+			// drained; a buffer grown for a large frame is dropped
+			if (buffer.capacity() > initialCapacity) {
+				buffer = ByteBuffer.allocate(initialCapacity);
+			} else {
+				buffer.clear();
+			}
+			start = 0;
+		}
+		
+		try(final IonInput in = new IonInput(new WrappedBufferInput(frame.slice()))) {
+			in.setTypes(types);
+			return (T) in.readObject();
+		}
+	}
+}
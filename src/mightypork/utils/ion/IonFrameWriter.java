@@ -0,0 +1,166 @@
+package mightypork.utils.ion;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+
+/**
+ * Writer of ION frames (objects prefixed with their length) to a channel,
+ * which can be in non-blocking mode. Written objects are encoded right away
+ * and queued; <code>flush()</code> sends as much of the queue as the channel
+ * accepts, batching many small frames into one gathering write.<br>
+ * <br>
+ * Typical use with a selector: <code>write()</code> the messages, then
+ * <code>flush()</code>; if it returns false, wait until the channel is
+ * writable and flush again.<br>
+ * <br>
+ * A writer is not thread-safe.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public class IonFrameWriter {
+	
+	/** Max number of frames sent by one write call */
+	private static final int MAX_BATCH = 64;
+	
+	private final WritableByteChannel channel;
+	private final int format;
+	
+	private IonTypes types = Ion.getDefaultTypes();
+	
+	private final Deque<ByteBuffer> queue = new ArrayDeque<>();
+	private long queuedBytes;
+	
+	/** Buffers for a gathering write, reused */
+	private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+	
+	/** Encoding buffer, reused by writes */
+	private final MemoryBufferOutput scratch = new MemoryBufferOutput(1024);
+	
+	
+	/**
+	 * Create a writer using the default format.
+	 *
+	 * @param channel channel to write
+	 */
+	public IonFrameWriter(WritableByteChannel channel)
+	{
+		this(channel, 0);
+	}
+	
+	
+	/**
+	 * Create a writer.
+	 *
+	 * @param channel channel to write
+	 * @param format format flags used for each frame (see
+	 *            {@link IonOutput#writeFormat(int)})
+	 */
+	public IonFrameWriter(WritableByteChannel channel, int format)
+	{
+		this.channel = channel;
+		this.format = format;
+	}
+	
+	
+	/**
+	 * Set the type registry used to save objects. By default, the registry of
+	 * {@link Ion} is used.
+	 *
+	 * @param types type registry
+	 */
+	public void setTypes(IonTypes types)
+	{
+		if (types == null) throw new NullPointerException("Types must not be null.");
+		
+		this.types = types;
+	}
+	
+	
+	/**
+	 * Encode an object and add it to the queue. Nothing is sent until
+	 * <code>flush()</code>.
+	 *
+	 * @param obj written object
+	 * @throws IOException if the object can't be encoded
+	 */
+	public void write(Object obj) throws IOException
+	{
+		scratch.reset();
+		scratch.writeInt(0); // length, filled in below
+		
+		final IonOutput out = new IonOutput(scratch);
+		out.setTypes(types);
+		if (format != 0) out.writeFormat(format);
+		out.writeObject(obj);
+		out.close(); // finishes compressed data
+		
+		final int size = scratch.size();
+		final ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOf(scratch.array(), size));
+		frame.putInt(0, size - 4);
+		
+		queue.add(frame);
+		queuedBytes += size;
+	}
+	
+	
+	/**
+	 * Send queued frames, as many as the channel accepts without blocking.
+	 *
+	 * @return true if all queued frames were sent
+	 * @throws IOException on write error
+	 */
+	public boolean flush() throws IOException
+	{
+		while (!queue.isEmpty()) {
+			final long written;
+			
+			if (channel instanceof GatheringByteChannel) {
+				int count = 0;
+				final Iterator<ByteBuffer> iter = queue.iterator();
+				while (count < MAX_BATCH && iter.hasNext()) {
+					batch[count++] = iter.next();
+				}
+				
+				written = ((GatheringByteChannel) channel).write(batch, 0, count);
+				Arrays.fill(batch, 0, count, null);
+			} else {
+				written = channel.write(queue.peek());
+			}
+			
+			queuedBytes -= written;
+			while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+				queue.poll();
+			}
+			
+			if (written == 0) break; // channel is full
+		}
+		
+		return queue.isEmpty();
+	}
+	
+	
+	/**
+	 * @return true if there are frames not yet sent
+	 */
+	public boolean hasQueued()
+	{
+		return !queue.isEmpty();
+	}
+	
+	
+	/**
+	 * @return number of bytes not yet sent
+	 */
+	public long getQueuedBytes()
+	{
+		return queuedBytes;
+	}
+}
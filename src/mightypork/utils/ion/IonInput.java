@@ -7,13 +7,21 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import mightypork.utils.Str;
 import mightypork.utils.exceptions.CorruptDataException;
 
 
@@ -24,21 +32,99 @@ import mightypork.utils.exceptions.CorruptDataException;
  */
 public class IonInput implements Closeable {
 	
-	private final DataInput in;
-	private final InputStream stream;
+	private DataInput in;
+	private Closeable stream;
 	
+	/** Buffered input for bulk reads, null if not buffered */
+	private ByteBufferInput buffered;
 	
+	/** Active format flags */
+	private int format;
+	/** Varint mode, see {@link Ion#FORMAT_COMPACT} */
+	private boolean compact;
+	/** Strings by index, see {@link Ion#FORMAT_STRING_TABLE}; null if disabled */
+	private List<String> stringTable;
+	/** Objects by handle, see {@link Ion#FORMAT_IDENTITY}; null if disabled */
+	private List<Object> handles;
+	
+	/** Handle placeholder for an object being loaded by an ionizer */
+	private static final Object UNRESOLVED = new Object();
+	/** Handle placeholder for a skipped object */
+	private static final Object SKIPPED = new Object();
+	
+	/** Keep values of sized bundles encoded until accessed */
+	private boolean lazyBundles;
+	
+	/** Pool for decoding segmented arrays and sequences, null if disabled */
+	private ForkJoinPool parallel;
+	
+	/** Registry of types to load */
+	private IonTypes types = Ion.getDefaultTypes();
+	
+	/** Buffer for decoding short strings, see {@link Ion#FORMAT_UTF8} */
+	private byte[] stringBuffer;
+	
+	/** Statistics of read objects, null if disabled */
+	private StatsRecorder stats;
+	/** Stream counting bytes of an unbuffered input, set when measuring */
+	private CountingStream counted;
+	/** Position of the last mark read, measured objects start there */
+	private long markPosition;
+	
+	
+	/**
+	 * Open a buffered input for a file
+	 *
+	 * @param inFile file to read
+	 * @throws FileNotFoundException
+	 */
 	@SuppressWarnings("resource")
 	public IonInput(File inFile) throws FileNotFoundException
 	{
-		this(new FileInputStream(inFile));
+		this(new FileInputStream(inFile), BufferPool.DEFAULT_SIZE, false);
 	}
 	
 	
+	/**
+	 * Create an unbuffered input. Only the bytes actually needed are read from
+	 * the stream.
+	 *
+	 * @param in stream to read
+	 */
 	public IonInput(InputStream in)
 	{
 		this.stream = in;
 		this.in = new DataInputStream(in);
+		this.buffered = null;
+		
+		setStats(Ion.getStats());
+	}
+	
+	
+	/**
+	 * Create a buffered input. Data is read through an internal byte buffer,
+	 * and primitive arrays are decoded in bulk. The wire format is the same as
+	 * with an unbuffered input.<br>
+	 * The input reads ahead, so the stream should not be used by anything else
+	 * while the input is open.
+	 *
+	 * @param in stream to read
+	 * @param bufferSize buffer size (bytes)
+	 * @param direct use a direct byte buffer
+	 */
+	public IonInput(InputStream in, int bufferSize, boolean direct)
+	{
+		this(new ChannelBufferInput(in, bufferSize, direct));
+	}
+	
+	
+	IonInput(ByteBufferInput in)
+	{
+		this.stream = in;
+		this.in = in;
+		this.buffered = in;
+		
+		setStats(Ion.getStats());
 	}
 	
 	
@@ -80,8 +166,172 @@ public class IonInput implements Closeable {
 	}
 	
 	
+	/**
+	 * @return active format flags (set when a format header is read)
+	 */
+	public int getFormat()
+	{
+		return format;
+	}
+	
+	
+	/**
+	 * Read format flags following a format header and switch to that format.
+	 *
+	 * @throws IOException
+	 */
+	private void readFormat() throws IOException
+	{
+		final int flags = readIntShort();
+		if ((flags & ~Ion.FORMAT_SUPPORTED) != 0) {
+			throw new CorruptDataException("Unsupported format flags: " + flags);
+		}
+		
+		final boolean deflate = (flags & Ion.FORMAT_DEFLATE) != 0;
+		if (hasFormat(Ion.FORMAT_DEFLATE) && !deflate) {
+			throw new CorruptDataException("Compression can't be turned off within a stream.");
+		}
+		
+		if (deflate && !hasFormat(Ion.FORMAT_DEFLATE)) {
+			final InflateBlockInput inflated = new InflateBlockInput(in, stream, parallel);
+			in = inflated;
+			stream = inflated;
+			buffered = inflated;
+		}
+		
+		setFormat(flags);
+	}
+	
+	
+	/**
+	 * Switch to a format without reading a header
+	 *
+	 * @param flags format flags
+	 */
+	void setFormat(int flags)
+	{
+		format = flags;
+		compact = (flags & Ion.FORMAT_COMPACT) != 0;
+		
+		if ((flags & Ion.FORMAT_STRING_TABLE) == 0) {
+			stringTable = null;
+		} else if (stringTable == null) {
+			stringTable = new ArrayList<>();
+		}
+		
+		if ((flags & Ion.FORMAT_IDENTITY) == 0) {
+			handles = null;
+		} else if (handles == null) {
+			handles = new ArrayList<>();
+		}
+	}
+	
+	
+	/**
+	 * @param flag format flag(s) to check
+	 * @return true if all the given format flags are active
+	 */
+	boolean hasFormat(int flag)
+	{
+		return (format & flag) == flag;
+	}
+	
+	
+	/**
+	 * Set lazy loading of bundles. When enabled, values of bundles written with
+	 * {@link Ion#FORMAT_SIZED_BUNDLES} are kept encoded, and decoded only when
+	 * first accessed. Bundles written in other formats are always loaded right
+	 * away.
+	 *
+	 * @param lazy lazy loading enabled
+	 */
+	public void setLazyBundles(boolean lazy)
+	{
+		this.lazyBundles = lazy;
+	}
+	
+	
+	/**
+	 * Set the type registry used to load objects. By default, the registry of
+	 * {@link Ion} is used.
+	 *
+	 * @param types type registry
+	 */
+	public void setTypes(IonTypes types)
+	{
+		if (types == null) throw new NullPointerException("Types must not be null.");
+		
+		this.types = types;
+	}
+	
+	
+	/**
+	 * @return the type registry in use
+	 */
+	public IonTypes getTypes()
+	{
+		return types;
+	}
+	
+	
+	/**
+	 * Record count, size and time of read objects by type. Must not be called
+	 * while reading an object.
+	 *
+	 * @param stats statistics to record to, null to disable
+	 */
+	public void setStats(IonStats stats)
+	{
+		this.stats = StatsRecorder.create(stats);
+		
+		if (stats != null && buffered == null && counted == null) {
+			// DataInputStream doesn't read ahead, so it can be replaced
+			counted = new CountingStream((InputStream) stream);
+			in = new DataInputStream(counted);
+		}
+	}
+	
+	
+	/**
+	 * @return statistics recorded to, null if disabled
+	 */
+	public IonStats getStats()
+	{
+		return stats == null ? null : stats.getStats();
+	}
+	
+	
+	/**
+	 * @return number of bytes read so far (counted only when measuring)
+	 */
+	private long position()
+	{
+		return buffered != null ? buffered.position() : counted.count;
+	}
+	
+	
+	/**
+	 * Enable parallel decoding of segmented arrays and sequences (written by
+	 * an output in parallel mode). Without a pool, the segments are decoded in
+	 * the calling thread.<br>
+	 * Compressed data (see {@link Ion#FORMAT_DEFLATE}) is then also read ahead
+	 * and decompressed on the pool, if the pool is set before the format
+	 * header is read.
+	 *
+	 * @param pool pool to use, null to disable
+	 */
+	public void setParallel(ForkJoinPool pool)
+	{
+		this.parallel = pool;
+	}
+	
+	
 	public short readShort() throws IOException
 	{
+		if (compact) {
+			final int n = readVarInt();
+			return (short) ((n >>> 1) ^ -(n & 1));
+		}
 		return in.readShort();
 	}
 	
@@ -94,16 +344,60 @@ public class IonInput implements Closeable {
 	
 	public int readInt() throws IOException
 	{
+		if (compact) {
+			final int n = readVarInt();
+			return (n >>> 1) ^ -(n & 1);
+		}
 		return in.readInt();
 	}
 	
 	
 	public long readLong() throws IOException
 	{
+		if (compact) {
+			final long n = readVarLong();
+			return (n >>> 1) ^ -(n & 1);
+		}
 		return in.readLong();
 	}
 	
 	
+	/**
+	 * Read an int written using <code>writeVarInt()</code>
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public int readVarInt() throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new CorruptDataException("Malformed varint.");
+	}
+	
+	
+	/**
+	 * Read a long written using <code>writeVarLong()</code>
+	 *
+	 * @return long
+	 * @throws IOException
+	 */
+	public long readVarLong() throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new CorruptDataException("Malformed varint.");
+	}
+	
+	
 	public float readFloat() throws IOException
 	{
 		return in.readFloat();
@@ -118,7 +412,70 @@ public class IonInput implements Closeable {
 	
 	public String readString() throws IOException
 	{
-		return in.readUTF();
+		if (stringTable != null) {
+			final int ref = readVarInt();
+			if (ref != 0) {
+				if (ref > stringTable.size()) throw new CorruptDataException("Invalid string reference: " + ref);
+				return stringTable.get(ref - 1);
+			}
+			
+			final String str = readStringData();
+			if (str.length() <= Ion.STRING_TABLE_MAX_LENGTH) {
+				stringTable.add(str);
+			}
+			return str;
+		}
+		
+		return readStringData();
+	}
+	
+	
+	private String readStringData() throws IOException
+	{
+		if (!hasFormat(Ion.FORMAT_UTF8)) return in.readUTF();
+		
+		return readStringBytes(readVarInt());
+	}
+	
+	
+	/**
+	 * Read a string in the {@link Ion#FORMAT_UTF8} format
+	 *
+	 * @param header the string's header (byte length and Latin-1 flag)
+	 * @return the string
+	 * @throws IOException
+	 */
+	private String readStringBytes(int header) throws IOException
+	{
+		final int length = header >>> 1;
+		
+		final byte[] bytes;
+		if (length <= Ion.STRING_BUFFER_SIZE) {
+			if (stringBuffer == null) stringBuffer = new byte[Ion.STRING_BUFFER_SIZE];
+			bytes = stringBuffer;
+		} else {
+			bytes = new byte[length];
+		}
+		
+		in.readFully(bytes, 0, length);
+		
+		return decodeString(bytes, length, (header & 1) != 0);
+	}
+	
+	
+	/**
+	 * Decode string bytes written by {@link IonOutput}
+	 *
+	 * @param bytes encoded string
+	 * @param length byte count
+	 * @param latin1 Latin-1 (one byte per char), UTF-8 otherwise
+	 * @return the string
+	 */
+	private static String decodeString(byte[] bytes, int length, boolean latin1)
+	{
+		if (latin1) return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+		
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
 	}
 	
 	
@@ -126,221 +483,1128 @@ public class IonInput implements Closeable {
 	{
 		final int length = readLength();
 		final boolean[] arr = new boolean[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readBoolean();
-		}
+		readBooleans(arr, 0, length);
 		return arr;
 	}
 	
 	
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readBooleans(boolean[] filled, int offset) throws IOException
+	{
+		final int length = readLength();
+		readBooleans(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readBooleans(boolean[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		if (buffered != null) {
+			buffered.readBooleans(filled, offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = in.readBoolean();
+			}
+		}
+	}
+	
+	
 	public byte[] readBytes() throws IOException
 	{
 		final int length = readLength();
 		final byte[] arr = new byte[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readByte();
-		}
+		readBytes(arr, 0, length);
 		return arr;
 	}
 	
 	
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readBytes(byte[] filled, int offset) throws IOException
+	{
+		final int length = readLength();
+		readBytes(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readBytes(byte[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		in.readFully(filled, offset, length);
+	}
+	
+	
 	public char[] readChars() throws IOException
 	{
 		final int length = readLength();
 		final char[] arr = new char[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readChar();
-		}
+		readChars(arr, 0, length);
 		return arr;
 	}
 	
 	
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readChars(char[] filled, int offset) throws IOException
+	{
+		final int length = readLength();
+		readChars(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readChars(char[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		if (buffered != null) {
+			buffered.readChars(filled, offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = in.readChar();
+			}
+		}
+	}
+	
+	
 	public short[] readShorts() throws IOException
 	{
 		final int length = readLength();
 		final short[] arr = new short[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readShort();
-		}
+		readShorts(arr, 0, length);
 		return arr;
 	}
 	
 	
-	public int[] readInts() throws IOException
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readShorts(short[] filled, int offset) throws IOException
 	{
 		final int length = readLength();
-		final int[] arr = new int[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readInt();
+		readShorts(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readShorts(short[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		if (compact) {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = readShort();
+			}
+		} else if (buffered != null) {
+			buffered.readShorts(filled, offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = in.readShort();
+			}
 		}
-		return arr;
 	}
 	
 	
-	public long[] readLongs() throws IOException
+	public int[] readInts() throws IOException
 	{
 		final int length = readLength();
-		final long[] arr = new long[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readLong();
+		final int[] arr = new int[length];
+		readInts(arr, 0, length);
+		return arr;
+	}
+	
+	
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readInts(int[] filled, int offset) throws IOException
+	{
+		final int length = readLength();
+		readInts(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readInts(int[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		if (compact) {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = readInt();
+			}
+		} else if (buffered != null) {
+			buffered.readInts(filled, offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = in.readInt();
+			}
+		}
+	}
+	
+	
+	public long[] readLongs() throws IOException
+	{
+		final int length = readLength();
+		final long[] arr = new long[length];
+		readLongs(arr, 0, length);
+		return arr;
+	}
+	
+	
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readLongs(long[] filled, int offset) throws IOException
+	{
+		final int length = readLength();
+		readLongs(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readLongs(long[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		if (compact) {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = readLong();
+			}
+		} else if (buffered != null) {
+			buffered.readLongs(filled, offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = in.readLong();
+			}
+		}
+	}
+	
+	
+	public float[] readFloats() throws IOException
+	{
+		final int length = readLength();
+		final float[] arr = new float[length];
+		readFloats(arr, 0, length);
+		return arr;
+	}
+	
+	
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readFloats(float[] filled, int offset) throws IOException
+	{
+		final int length = readLength();
+		readFloats(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readFloats(float[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		if (buffered != null) {
+			buffered.readFloats(filled, offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = in.readFloat();
+			}
+		}
+	}
+	
+	
+	public double[] readDoubles() throws IOException
+	{
+		final int length = readLength();
+		final double[] arr = new double[length];
+		readDoubles(arr, 0, length);
+		return arr;
+	}
+	
+	
+	/**
+	 * Read an array into a provided one, without allocating
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @return number of elements read
+	 * @throws IOException
+	 */
+	public int readDoubles(double[] filled, int offset) throws IOException
+	{
+		final int length = readLength();
+		readDoubles(filled, offset, length);
+		return length;
+	}
+	
+	
+	/**
+	 * Read array elements, with the length already read using
+	 * <code>readLength()</code>.
+	 *
+	 * @param filled array to fill
+	 * @param offset index of the first element in the filled array
+	 * @param length number of elements
+	 * @throws IOException
+	 */
+	public void readDoubles(double[] filled, int offset, int length) throws IOException
+	{
+		checkBounds(filled.length, offset, length);
+		
+		if (buffered != null) {
+			buffered.readDoubles(filled, offset, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				filled[offset + i] = in.readDouble();
+			}
+		}
+	}
+	
+	
+	private static void checkBounds(int arrayLength, int offset, int length)
+	{
+		if (offset < 0 || length > arrayLength - offset) {
+			throw new IndexOutOfBoundsException("Can't fit " + length + " elements at " + offset + " into array of " + arrayLength + ".");
+		}
+	}
+	
+	
+	public String[] readStrings() throws IOException
+	{
+		final int length = readLength();
+		final String[] arr = new String[length];
+		for (int i = 0; i < length; i++) {
+			arr[i] = readString();
+		}
+		return arr;
+	}
+	
+	
+	public Object[] readObjects() throws IOException
+	{
+		final int length = readLength();
+		final Object[] arr = new Object[length];
+		for (int i = 0; i < length; i++) {
+			arr[i] = readObject();
+		}
+		return arr;
+	}
+	
+	
+	/**
+	 * Read bundle without a mark
+	 */
+	public IonDataBundle readBundle() throws IOException
+	{
+		final IonDataBundle ib = new IonDataBundle();
+		ib.load(this);
+		return ib;
+	}
+	
+	
+	/**
+	 * Read bundle without a mark, load into a provided one
+	 */
+	public void readBundle(IonDataBundle filled) throws IOException
+	{
+		filled.clear();
+		filled.load(this);
+	}
+	
+	
+	/**
+	 * Read a binary object (with a mark) into a provided instance, instead of
+	 * creating a new one. Arrays held by the object can be reused by its
+	 * <code>load()</code> method.
+	 *
+	 * @param filled loaded instance
+	 * @return the instance, or null if a null was written
+	 * @throws IOException if the object is of a different type
+	 */
+	public <T extends IonBinary> T readBinary(T filled) throws IOException
+	{
+		final int mark = readMark();
+		if (mark == Ion.NULL) return null;
+		
+		final IonType type = types.getType(filled.getClass());
+		if (type == null || type.kind != IonType.BINARY || type.mark != mark) {
+			throw new CorruptDataException("Object of " + Str.val(filled.getClass()) + " expected, found mark " + mark + ".");
+		}
+		
+		addHandle(filled);
+		filled.load(this);
+		return filled;
+	}
+	
+	
+	/**
+	 * Read a mark. Format headers are applied and skipped, so they can
+	 * precede any structure, not only an object.
+	 */
+	int readMark() throws IOException
+	{
+		if (stats != null) markPosition = position();
+		
+		int mark = readIntByte();
+		while (mark == Ion.FORMAT) {
+			readFormat();
+			
+			if (stats != null) markPosition = position();
+			mark = readIntByte();
+		}
+		return mark;
+	}
+	
+	
+	/**
+	 * Read the length of an array (or string table, etc.). Together with the
+	 * <code>readXxx(filled, offset, length)</code> methods, this can be used
+	 * to check the length or pick a buffer before reading the elements.
+	 *
+	 * @return length
+	 * @throws IOException
+	 */
+	public int readLength() throws IOException
+	{
+		final int length = compact ? readVarInt() : in.readInt();
+		if (length < 0) throw new CorruptDataException("Negative length: " + length);
+		return length;
+	}
+	
+	
+	/**
+	 * <p>
+	 * Read object based on mark; if null mark is found, returns default value.
+	 * </p>
+	 * <p>
+	 * If, however, an object of invalid or different type is found, an
+	 * exception will be thrown.
+	 * </p>
+	 *
+	 * @param def default value.
+	 * @return the loaded object
+	 * @throws CorruptDataException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T readObject(T def) throws CorruptDataException
+	{
+		try {
+			final Object o = readObject();
+			return (T) (o == null ? def : o);
+		} catch (final Exception e) {
+			throw new CorruptDataException("Could not load object.", e);
+		}
+	}
+	
+	
+	/**
+	 * Read single object, preceded by a mark.
+	 *
+	 * @return the loaded object
+	 * @throws IOException
+	 */
+	public Object readObject() throws IOException
+	{
+		return readObject(readMark());
+	}
+	
+	
+	/**
+	 * Read single object, with the mark already read.
+	 *
+	 * @param mark the object's mark
+	 * @return the loaded object
+	 * @throws IOException
+	 */
+	Object readObject(int mark) throws IOException
+	{
+		if (stats == null) return readObjectData(mark);
+		
+		final IonType type = getMeasuredType(mark);
+		if (type == null) return readObjectData(mark); // null, reference etc.
+		
+		stats.begin(markPosition);
+		try {
+			return readObjectData(mark);
+		} finally {
+			stats.end(type, position());
+		}
+	}
+	
+	
+	/**
+	 * Get type to record an object with mark to
+	 *
+	 * @param mark the object's mark
+	 * @return the type, or null if the mark is not of an object type
+	 */
+	private IonType getMeasuredType(int mark)
+	{
+		if (mark == Ion.SEGMENTED_ARRAY) mark = Ion.OBJECT_ARRAY;
+		if (mark == Ion.SEGMENTED_SEQUENCE) mark = Ion.SEQUENCE;
+		
+		final IonType type = types.getType(mark);
+		return type != null ? type : IonTypes.getBuiltinType(mark);
+	}
+	
+	
+	/**
+	 * Read single object, with the mark already read, without measuring it.
+	 *
+	 * @param mark the object's mark
+	 * @return the loaded object
+	 * @throws IOException
+	 */
+	private Object readObjectData(int mark) throws IOException
+	{
+		final IonType type = types.getType(mark);
+		if (type != null) {
+			try {
+				switch (type.kind) {
+					case IonType.BINARY: {
+						final IonBinary loaded = (IonBinary) type.newInstance();
+						addHandle(loaded);
+						loaded.load(this);
+						return loaded;
+					}
+					
+					case IonType.BUNDLED: {
+						final IonBundled loaded = (IonBundled) type.newInstance();
+						addHandle(loaded);
+						loaded.load(readBundle());
+						return loaded;
+					}
+					
+					case IonType.INDIRECT_BUNDLED: {
+						final int handle = addHandle(UNRESOLVED);
+						final Object loaded = type.ionizerBundled.load(readBundle());
+						setHandle(handle, loaded);
+						return loaded;
+					}
+					
+					case IonType.INDIRECT_BINARY: {
+						final int handle = addHandle(UNRESOLVED);
+						final Object loaded = type.ionizerBinary.load(this);
+						setHandle(handle, loaded);
+						return loaded;
+					}
+				}
+			} catch (final Exception e) {
+				throw new RuntimeException("Could not load object for mark: " + mark, e);
+			}
+		}
+		
+		switch (mark) {
+			case Ion.NULL:
+				return null;
+				
+			case Ion.BOOLEAN:
+				return readBoolean();
+				
+			case Ion.BYTE:
+				return readByte();
+				
+			case Ion.CHAR:
+				return readChar();
+				
+			case Ion.SHORT:
+				return readShort();
+				
+			case Ion.INT:
+				return readInt();
+				
+			case Ion.LONG:
+				return readLong();
+				
+			case Ion.FLOAT:
+				return readFloat();
+				
+			case Ion.DOUBLE:
+				return readDouble();
+				
+			case Ion.STRING:
+				return readString();
+				
+			case Ion.BOOLEAN_ARRAY:
+				return readBooleans();
+				
+			case Ion.BYTE_ARRAY:
+				return readBytes();
+				
+			case Ion.CHAR_ARRAY:
+				return readChars();
+				
+			case Ion.SHORT_ARRAY:
+				return readShorts();
+				
+			case Ion.INT_ARRAY:
+				return readInts();
+				
+			case Ion.LONG_ARRAY:
+				return readLongs();
+				
+			case Ion.FLOAT_ARRAY:
+				return readFloats();
+				
+			case Ion.DOUBLE_ARRAY:
+				return readDoubles();
+				
+			case Ion.STRING_ARRAY:
+				return readStrings();
+				
+			case Ion.OBJECT_ARRAY:
+				return readObjects();
+				
+			case Ion.MAP:
+				return readMap();
+				
+			case Ion.SEQUENCE:
+				return readSequence();
+				
+			case Ion.REFERENCE:
+				return readReference();
+				
+			case Ion.SEGMENTED_ARRAY:
+				return readSegments();
+				
+			case Ion.SEGMENTED_SEQUENCE:
+				return new ArrayList<>(Arrays.asList(readSegments()));
+				
+			case Ion.FORMAT:
+				readFormat();
+				return readObject();
+				
+			default:
+				throw new CorruptDataException("Invalid mark: " + mark);
+		}
+	}
+	
+	
+	/**
+	 * Skip a single object (preceded by a mark) without loading it. Arrays,
+	 * strings, maps, sequences and bundles are skipped without creating any
+	 * objects, and values of sized bundles are skipped using their length.<br>
+	 * Objects of registered binary types (and ionizers) can be read only by
+	 * their own code, so those are loaded and dropped. In identity mode, a
+	 * later reference to a skipped object can't be loaded.
+	 *
+	 * @throws IOException
+	 */
+	public void skipObject() throws IOException
+	{
+		skipObject(readMark());
+	}
+	
+	
+	/**
+	 * Skip single object, with the mark already read.
+	 *
+	 * @param mark the object's mark
+	 * @throws IOException
+	 */
+	void skipObject(int mark) throws IOException
+	{
+		final IonType type = types.getType(mark);
+		if (type != null) {
+			switch (mark) {
+				case Ion.ION_BUNDLE:
+					addHandle(SKIPPED);
+					skipBundle();
+					return;
+					
+				case Ion.SEQUENCE_WRAPPER:
+					addHandle(SKIPPED);
+					skipEntries(1);
+					return;
+					
+				case Ion.MAP_WRAPPER:
+					addHandle(SKIPPED);
+					skipEntries(2);
+					return;
+			}
+			
+			if (type.kind == IonType.BUNDLED || type.kind == IonType.INDIRECT_BUNDLED) {
+				addHandle(SKIPPED);
+				skipBundle();
+			} else {
+				readObject(mark); // the layout is known only to the type
+			}
+			return;
+		}
+		
+		switch (mark) {
+			case Ion.NULL:
+				return;
+				
+			case Ion.BOOLEAN:
+			case Ion.BYTE:
+				skipFully(1);
+				return;
+				
+			case Ion.CHAR:
+				skipFully(2);
+				return;
+				
+			case Ion.SHORT:
+				skipNumber(2);
+				return;
+				
+			case Ion.INT:
+				skipNumber(4);
+				return;
+				
+			case Ion.LONG:
+				skipNumber(8);
+				return;
+				
+			case Ion.FLOAT:
+				skipFully(4);
+				return;
+				
+			case Ion.DOUBLE:
+				skipFully(8);
+				return;
+				
+			case Ion.STRING:
+				skipString();
+				return;
+				
+			case Ion.BOOLEAN_ARRAY:
+			case Ion.BYTE_ARRAY:
+				skipFully(readLength());
+				return;
+				
+			case Ion.CHAR_ARRAY:
+				skipFully(readLength() * 2L);
+				return;
+				
+			case Ion.SHORT_ARRAY:
+				skipNumbers(readLength(), 2);
+				return;
+				
+			case Ion.INT_ARRAY:
+				skipNumbers(readLength(), 4);
+				return;
+				
+			case Ion.LONG_ARRAY:
+				skipNumbers(readLength(), 8);
+				return;
+				
+			case Ion.FLOAT_ARRAY:
+				skipFully(readLength() * 4L);
+				return;
+				
+			case Ion.DOUBLE_ARRAY:
+				skipFully(readLength() * 8L);
+				return;
+				
+			case Ion.STRING_ARRAY: {
+				final int length = readLength();
+				for (int i = 0; i < length; i++) {
+					skipString();
+				}
+				return;
+			}
+			
+			case Ion.OBJECT_ARRAY: {
+				final int length = readLength();
+				for (int i = 0; i < length; i++) {
+					skipObject();
+				}
+				return;
+			}
+			
+			case Ion.MAP:
+				skipEntries(2);
+				return;
+				
+			case Ion.SEQUENCE:
+				skipEntries(1);
+				return;
+				
+			case Ion.REFERENCE:
+				readVarInt();
+				return;
+				
+			case Ion.SEGMENTED_ARRAY:
+			case Ion.SEGMENTED_SEQUENCE: {
+				readLength();
+				final int count = readLength();
+				for (int i = 0; i < count; i++) {
+					readLength(); // elements
+					skipFully(readLength());
+				}
+				return;
+			}
+			
+			default:
+				throw new CorruptDataException("Invalid mark: " + mark);
+		}
+	}
+	
+	
+	/**
+	 * Skip entries of a map or sequence, up to the END mark
+	 *
+	 * @param objects objects per entry (1 for sequence, 2 for map)
+	 * @throws IOException
+	 */
+	private void skipEntries(int objects) throws IOException
+	{
+		while (hasNextEntry()) {
+			for (int i = 0; i < objects; i++) {
+				skipObject();
+			}
 		}
-		return arr;
 	}
 	
 	
-	public float[] readFloats() throws IOException
+	/**
+	 * Skip bundle contents (written without a mark)
+	 *
+	 * @throws IOException
+	 */
+	private void skipBundle() throws IOException
 	{
-		final int length = readLength();
-		final float[] arr = new float[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readFloat();
+		final boolean sized = hasFormat(Ion.FORMAT_SIZED_BUNDLES);
+		
+		while (hasNextEntry()) {
+			skipObject(); // key
+			
+			if (sized) {
+				skipFully(readLength());
+			} else {
+				skipObject();
+			}
 		}
-		return arr;
 	}
 	
 	
-	public double[] readDoubles() throws IOException
+	/**
+	 * Skip a string. Strings which would be added to the string table are
+	 * loaded, since they can be referenced later.
+	 *
+	 * @throws IOException
+	 */
+	private void skipString() throws IOException
 	{
-		final int length = readLength();
-		final double[] arr = new double[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readDouble();
+		if (stringTable == null) {
+			if (hasFormat(Ion.FORMAT_UTF8)) {
+				skipFully(readVarInt() >>> 1);
+			} else {
+				skipFully(in.readUnsignedShort());
+			}
+			return;
+		}
+		
+		if (!hasFormat(Ion.FORMAT_UTF8)) {
+			readString();
+			return;
+		}
+		
+		if (readVarInt() != 0) return; // reference
+		
+		final int header = readVarInt();
+		final int length = header >>> 1;
+		
+		// a char takes at most 3 bytes in UTF-8
+		final int maxChars = ((header & 1) != 0) ? length : length / 3;
+		if (maxChars > Ion.STRING_TABLE_MAX_LENGTH) {
+			skipFully(length);
+			return;
+		}
+		
+		final String str = readStringBytes(header);
+		if (str.length() <= Ion.STRING_TABLE_MAX_LENGTH) {
+			stringTable.add(str);
 		}
-		return arr;
 	}
 	
 	
-	public String[] readStrings() throws IOException
+	/**
+	 * Skip a short, int or long
+	 *
+	 * @param size size when not in compact mode
+	 * @throws IOException
+	 */
+	private void skipNumber(int size) throws IOException
 	{
-		final int length = readLength();
-		final String[] arr = new String[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = in.readUTF();
+		if (compact) {
+			readVarLong();
+		} else {
+			skipFully(size);
 		}
-		return arr;
 	}
 	
 	
-	public Object[] readObjects() throws IOException
+	private void skipNumbers(int count, int size) throws IOException
 	{
-		final int length = readLength();
-		final Object[] arr = new Object[length];
-		for (int i = 0; i < length; i++) {
-			arr[i] = readObject();
+		if (compact) {
+			for (int i = 0; i < count; i++) {
+				readVarLong();
+			}
+		} else {
+			skipFully((long) count * size);
 		}
-		return arr;
 	}
 	
 	
 	/**
-	 * Read bundle without a mark
+	 * Skip bytes of the input
+	 *
+	 * @param count byte count
+	 * @throws IOException on read error or end of data
 	 */
-	public IonDataBundle readBundle() throws IOException
+	private void skipFully(long count) throws IOException
 	{
-		final IonDataBundle ib = new IonDataBundle();
-		ib.load(this);
-		return ib;
+		while (count > 0) {
+			final int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+			if (skipped > 0) {
+				count -= skipped;
+			} else {
+				in.readByte(); // throws at end of data
+				count--;
+			}
+		}
 	}
 	
 	
 	/**
-	 * Read bundle without a mark, load into a provided one
+	 * Assign a handle to a loaded object, if in identity mode
+	 *
+	 * @param obj the object
+	 * @return the handle, -1 if not in identity mode
 	 */
-	public void readBundle(IonDataBundle filled) throws IOException
+	private int addHandle(Object obj)
 	{
-		filled.clear();
-		filled.load(this);
+		if (handles == null) return -1;
+		
+		handles.add(obj);
+		return handles.size() - 1;
 	}
 	
 	
-	private int readMark() throws IOException
+	private void setHandle(int handle, Object obj)
 	{
-		return readIntByte();
+		if (handle != -1) handles.set(handle, obj);
 	}
 	
 	
-	private int readLength() throws IOException
+	private Object readReference() throws IOException
 	{
-		return readInt();
+		if (handles == null) throw new CorruptDataException("Object reference outside identity mode.");
+		
+		final int handle = readVarInt();
+		if (handle < 0 || handle >= handles.size()) throw new CorruptDataException("Invalid object reference: " + handle);
+		
+		final Object obj = handles.get(handle);
+		if (obj == UNRESOLVED) throw new CorruptDataException("Reference to an object still being loaded by an ionizer.");
+		if (obj == SKIPPED) throw new CorruptDataException("Reference to a skipped object.");
+		
+		return obj;
 	}
 	
 	
 	/**
-	 * <p>
-	 * Read object based on mark; if null mark is found, returns default value.
-	 * </p>
-	 * <p>
-	 * If, however, an object of invalid or different type is found, an
-	 * exception will be thrown.
-	 * </p>
+	 * Read elements written in segments, decoding them on the parallel pool
+	 * if set.
 	 *
-	 * @param def default value.
-	 * @return the loaded object
-	 * @throws CorruptDataException
+	 * @return the elements
+	 * @throws IOException
 	 */
-	@SuppressWarnings("unchecked")
-	public <T> T readObject(T def) throws CorruptDataException
+	private Object[] readSegments() throws IOException
 	{
-		try {
-			final Object o = readObject();
-			return (T) (o == null ? def : o);
-		} catch (final Exception e) {
-			throw new CorruptDataException("Could not load object.", e);
+		final int length = readLength();
+		final int count = readLength();
+		
+		final Object[] arr = new Object[length];
+		final List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+		
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			final int elements = readLength();
+			final int size = readLength();
+			if (elements > length - offset) throw new CorruptDataException("Segments exceed array length: " + length);
+			
+			final byte[] data = new byte[size];
+			in.readFully(data);
+			if (stats != null) stats.addNestedBytes(size);
+			
+			final SegmentDecoder decoder = new SegmentDecoder(data, arr, offset, elements);
+			if (parallel != null) {
+				tasks.add(parallel.submit(decoder));
+			} else {
+				decoder.call();
+			}
+			
+			offset += elements;
+		}
+		
+		for (final ForkJoinTask<Void> task : tasks) {
+			Ion.await(task);
+		}
+		
+		if (offset != length) throw new CorruptDataException("Segments don't fill array length: " + length);
+		
+		return arr;
+	}
+	
+	
+	private class SegmentDecoder implements Callable<Void> {
+		
+		private final byte[] data;
+		private final Object[] arr;
+		private final int offset;
+		private final int count;
+		
+		
+		public SegmentDecoder(byte[] data, Object[] arr, int offset, int count)
+		{
+			this.data = data;
+			this.arr = arr;
+			this.offset = offset;
+			this.count = count;
+		}
+		
+		
+		@Override
+		public Void call() throws IOException
+		{
+			try(final IonInput sub = new IonInput(new WrappedBufferInput(data, 0, data.length))) {
+				sub.setFormat(format);
+				sub.setTypes(types);
+				sub.setLazyBundles(lazyBundles);
+				sub.stats = stats == null ? null : new StatsRecorder(stats.getStats());
+				
+				for (int i = 0; i < count; i++) {
+					arr[offset + i] = sub.readObject();
+				}
+			}
+			return null;
 		}
 	}
 	
 	
 	/**
-	 * Read single object, preceded by a mark.
+	 * Read a primitive value without boxing.
 	 *
-	 * @return the loaded object
+	 * @param mark mark of the primitive type (already read)
+	 * @return value bits, as stored in a bundle
 	 * @throws IOException
 	 */
-	public Object readObject() throws IOException
+	long readPrimitive(int mark) throws IOException
 	{
-		final int mark = readMark();
-		
-		try {
-			
-			if (Ion.isMarkForBinary(mark)) {
-				IonBinary loaded;
-				
-				loaded = (IonBinary) Ion.getClassForMark(mark).newInstance();
-				
-				loaded.load(this);
-				return loaded;
-			}
-			
-			if (Ion.isMarkForBundled(mark)) {
-				IonBundled loaded;
-				
-				loaded = (IonBundled) Ion.getClassForMark(mark).newInstance();
-				
-				final IonDataBundle ib = readBundle();
-				loaded.load(ib);
-				return loaded;
-			}
-			
-			if (Ion.isMarkForIndirectBundled(mark)) {
-				final IonizerBundled<?> ionizer = Ion.getIonizerBundledForClass(Ion.getClassForMark(mark));
-				return ionizer.load(readBundle());
-			}
-			
-			if (Ion.isMarkForIndirectBinary(mark)) {
-				final IonizerBinary<?> ionizer = Ion.getIonizerBinaryForClass(Ion.getClassForMark(mark));
-				return ionizer.load(this);
-			}
-			
-		} catch (final Exception e) {
-			throw new RuntimeException("Could not load object for mark: " + mark, e);
-		}
-		
 		switch (mark) {
-			case Ion.NULL:
-				return null;
-				
 			case Ion.BOOLEAN:
-				return readBoolean();
+				return readBoolean() ? 1 : 0;
 				
 			case Ion.BYTE:
 				return readByte();
@@ -358,52 +1622,64 @@ public class IonInput implements Closeable {
 				return readLong();
 				
 			case Ion.FLOAT:
-				return readFloat();
+				return Float.floatToRawIntBits(readFloat());
 				
 			case Ion.DOUBLE:
-				return readDouble();
-				
-			case Ion.STRING:
-				return readString();
-				
-			case Ion.BOOLEAN_ARRAY:
-				return readBooleans();
-				
-			case Ion.BYTE_ARRAY:
-				return readBytes();
-				
-			case Ion.CHAR_ARRAY:
-				return readChars();
-				
-			case Ion.SHORT_ARRAY:
-				return readShorts();
-				
-			case Ion.INT_ARRAY:
-				return readInts();
-				
-			case Ion.LONG_ARRAY:
-				return readLongs();
-				
-			case Ion.FLOAT_ARRAY:
-				return readFloats();
-				
-			case Ion.DOUBLE_ARRAY:
-				return readDoubles();
-				
-			case Ion.STRING_ARRAY:
-				return readStrings();
-				
-			case Ion.OBJECT_ARRAY:
-				return readObjects();
-				
-			case Ion.MAP:
-				return readMap();
-				
-			case Ion.SEQUENCE:
-				return readSequence();
+				return Double.doubleToRawLongBits(readDouble());
 				
 			default:
-				throw new CorruptDataException("Invalid mark: " + mark);
+				throw new CorruptDataException("Not a primitive mark: " + mark);
+		}
+	}
+	
+	
+	/**
+	 * Read a value of a bundle entry, written using
+	 * <code>writeBundleValue()</code>. Primitives are stored to the bundle
+	 * without boxing. In lazy mode, other values of sized bundles are stored
+	 * undecoded, as an {@link IonSlice}.
+	 *
+	 * @param bundle bundle to store the value to
+	 * @param key the entry's key
+	 * @throws IOException
+	 */
+	void readBundleValue(IonDataBundle bundle, String key) throws IOException
+	{
+		final boolean sized = hasFormat(Ion.FORMAT_SIZED_BUNDLES);
+		
+		final int length = sized ? readLength() : -1;
+		final int mark = readMark();
+		
+		if (PrimitiveSlots.isPrimitive(mark)) {
+			bundle.putPrimitive(key, mark, readPrimitive(mark));
+			return;
+		}
+		
+		if (!sized) {
+			bundle.putDecoded(key, readObject(mark));
+			return;
+		}
+		
+		if (lazyBundles) {
+			if (length < 1) throw new CorruptDataException("Invalid value length: " + length);
+			
+			final byte[] data = new byte[length];
+			data[0] = (byte) mark;
+			in.readFully(data, 1, length - 1);
+			bundle.putDecoded(key, new IonSlice(data, format, types));
+			return;
+		}
+		
+		// sized values have their own string table and handles
+		final List<String> outerTable = stringTable;
+		final List<Object> outerHandles = handles;
+		if (outerTable != null) stringTable = new ArrayList<>();
+		if (outerHandles != null) handles = new ArrayList<>();
+		try {
+			bundle.putDecoded(key, readObject(mark));
+		} finally {
+			stringTable = outerTable;
+			handles = outerHandles;
 		}
 	}
 	
@@ -425,6 +1701,69 @@ public class IonInput implements Closeable {
 	}
 	
 	
+	/**
+	 * Read a SEQUENCE mark, written by <code>startSequence()</code> on output.
+	 * The entries can be then read using a cursor or any of the
+	 * <code>readSequence()</code> methods.
+	 *
+	 * @throws IOException if the next mark is not SEQUENCE
+	 */
+	public void startSequence() throws IOException
+	{
+		final int mark = readMark();
+		if (mark != Ion.SEQUENCE) throw new CorruptDataException("Expected a sequence, found mark: " + mark);
+	}
+	
+	
+	/**
+	 * Read a MAP mark, written by <code>startMap()</code> on output. The
+	 * entries can be then read using a visitor or any of the
+	 * <code>readMap()</code> methods.
+	 *
+	 * @throws IOException if the next mark is not MAP
+	 */
+	public void startMap() throws IOException
+	{
+		final int mark = readMark();
+		if (mark != Ion.MAP) throw new CorruptDataException("Expected a map, found mark: " + mark);
+	}
+	
+	
+	/**
+	 * Get a cursor reading elements of a sequence one by one, so the sequence
+	 * can be processed with constant memory.
+	 *
+	 * @return the cursor
+	 */
+	public <T> IonSequenceCursor<T> readSequenceCursor()
+	{
+		return new IonSequenceCursor<>(this);
+	}
+	
+	
+	/**
+	 * Read element pairs of a map, passing each to a visitor, so the map can
+	 * be processed with constant memory.
+	 *
+	 * @param visitor visitor receiving the entries
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public <K, V> void readMap(IonMapVisitor<K, V> visitor) throws IOException
+	{
+		try {
+			while (hasNextEntry()) {
+				final K key = (K) readObject();
+				final V value = (V) readObject();
+				
+				visitor.visit(key, value);
+			}
+		} catch (final ClassCastException e) {
+			throw new CorruptDataException("Unexpected element type in map.", e);
+		}
+	}
+	
+	
 	/**
 	 * Read a sequence of elements into an ArrayList
 	 *
@@ -501,4 +1840,46 @@ public class IonInput implements Closeable {
 	{
 		stream.close();
 	}
+	
+	
+	/**
+	 * Input stream counting the bytes read
+	 */
+	private static class CountingStream extends FilterInputStream {
+		
+		long count;
+		
+		
+		public CountingStream(InputStream in)
+		{
+			super(in);
+		}
+		
+		
+		@Override
+		public int read() throws IOException
+		{
+			final int b = super.read();
+			if (b >= 0) count++;
+			return b;
+		}
+		
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			final int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+		
+		
+		@Override
+		public long skip(long n) throws IOException
+		{
+			final long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
 }
@@ -0,0 +1,586 @@
+package mightypork.utils.ion;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import mightypork.utils.exceptions.CorruptDataException;
+import mightypork.utils.logging.Log;
+
+
+/**
+ * Append-only log of keyed ION records. Each write appends a new version of a
+ * record (or a removal), so the cost of a save depends only on the amount of
+ * changed data. When opened, the log is replayed and the latest version of each
+ * record is used.<br>
+ * <br>
+ * Each entry carries a CRC32 checksum; an incomplete or damaged entry at the
+ * end of the log (ie. after a crash during write) is discarded on open.<br>
+ * <br>
+ * Old versions of records are garbage. When the garbage exceeds the configured
+ * ratio, the live records are copied to a new file in a background thread,
+ * which then replaces the log.<br>
+ * <br>
+ * The journal is thread-safe.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public class IonJournal implements Closeable, Flushable {
+	
+	private static final int MAGIC = 0x494F4E4A; // "IONJ"
+	private static final int VERSION = 1;
+	
+	private static final int HEADER_SIZE = 5;
+	
+	/** Entry header: payload length, checksum */
+	private static final int ENTRY_HEADER_SIZE = 8;
+	
+	private static final int OP_PUT = 1;
+	private static final int OP_REMOVE = 2;
+	
+	/** Default garbage ratio triggering compaction */
+	public static final double DEFAULT_GARBAGE_RATIO = 0.5;
+	
+	/** Logs smaller than this are never compacted automatically */
+	private static final long MIN_COMPACT_SIZE = 64 * 1024;
+	
+	private final File path;
+	private final int format;
+	private volatile double garbageRatio = DEFAULT_GARBAGE_RATIO;
+	
+	private RandomAccessFile file;
+	private FileChannel channel;
+	
+	/** Latest entry of each live record */
+	private Map<String, Record> index = new LinkedHashMap<>();
+	
+	/** File position where the next entry is written */
+	private long end;
+	
+	/** Total size of live entries */
+	private long liveBytes;
+	
+	private boolean compacting;
+	private boolean closed;
+	
+	private final CRC32 crc = new CRC32();
+	private final MemoryBufferOutput scratch = new MemoryBufferOutput(1024);
+	
+	
+	private static class Record {
+		
+		/** Entry offset (incl. entry header) */
+		final long offset;
+		
+		/** Entry length (incl. entry header) */
+		final int length;
+		
+		
+		public Record(long offset, int length)
+		{
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	
+	/**
+	 * Open a journal, creating it if the file does not exist.
+	 *
+	 * @param file journal file
+	 * @throws IOException if the file can't be opened, or is not a journal
+	 */
+	public IonJournal(File file) throws IOException
+	{
+		this(file, 0);
+	}
+	
+	
+	/**
+	 * Open a journal, creating it if the file does not exist.
+	 *
+	 * @param file journal file
+	 * @param format format flags used for written records (see
+	 *            {@link IonOutput#writeFormat(int)})
+	 * @throws IOException if the file can't be opened, or is not a journal
+	 */
+	public IonJournal(File file, int format) throws IOException
+	{
+		this.path = file;
+		this.format = format;
+		
+		open();
+		
+		try {
+			if (channel.size() == 0) {
+				writeHeader(channel);
+				end = HEADER_SIZE;
+			} else {
+				replay();
+			}
+		} catch (final IOException | RuntimeException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+	
+	
+	private void open() throws IOException
+	{
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+	}
+	
+	
+	private static void writeHeader(FileChannel target) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.put((byte) VERSION);
+		header.flip();
+		writeFully(target, header, 0);
+	}
+	
+	
+	/**
+	 * Read all entries and build the index. A damaged tail is cut off.
+	 */
+	private void replay() throws IOException
+	{
+		final long size = channel.size();
+		
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (size < HEADER_SIZE || !readFully(channel, header, 0)) throw new CorruptDataException("Not an ION journal.");
+		if (header.getInt() != MAGIC) throw new CorruptDataException("Not an ION journal.");
+		if (header.get() != VERSION) throw new CorruptDataException("Unsupported ION journal version.");
+		
+		final ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		ByteBuffer payload = ByteBuffer.allocate(1024);
+		
+		long pos = HEADER_SIZE;
+		while (pos < size) {
+			entryHeader.clear();
+			if (!readFully(channel, entryHeader, pos)) break;
+			
+			final int length = entryHeader.getInt();
+			final int checksum = entryHeader.getInt();
+			if (length <= 0 || length > size - pos - ENTRY_HEADER_SIZE) break;
+			
+			if (payload.capacity() < length) payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+			payload.clear();
+			payload.limit(length);
+			if (!readFully(channel, payload, pos + ENTRY_HEADER_SIZE)) break;
+			
+			crc.reset();
+			crc.update(payload.array(), 0, length);
+			if ((int) crc.getValue() != checksum) break;
+			
+			final IonInput in = new IonInput(new WrappedBufferInput(payload));
+			final int op = in.readIntByte();
+			final Object key = in.readObject();
+			if (!(key instanceof String) || (op != OP_PUT && op != OP_REMOVE)) break;
+			
+			final int entryLength = ENTRY_HEADER_SIZE + length;
+			if (op == OP_PUT) {
+				putRecord((String) key, new Record(pos, entryLength));
+			} else {
+				removeRecord((String) key);
+			}
+			
+			pos += entryLength;
+		}
+		
+		if (pos < size) {
+			Log.w("Discarding damaged tail of ION journal " + path + " (" + (size - pos) + " bytes).");
+			channel.truncate(pos);
+		}
+		
+		end = pos;
+	}
+	
+	
+	private void putRecord(String key, Record record)
+	{
+		removeRecord(key);
+		index.put(key, record);
+		liveBytes += record.length;
+	}
+	
+	
+	private boolean removeRecord(String key)
+	{
+		final Record old = index.remove(key);
+		if (old == null) return false;
+		
+		liveBytes -= old.length;
+		return true;
+	}
+	
+	
+	/**
+	 * Set ratio of garbage to total log size, above which the log is compacted.
+	 *
+	 * @param ratio ratio 0..1; 1 disables automatic compaction.
+	 */
+	public void setGarbageRatio(double ratio)
+	{
+		if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("Garbage ratio must be 0..1");
+		
+		this.garbageRatio = ratio;
+	}
+	
+	
+	/**
+	 * @return keys of all records (read-only snapshot)
+	 */
+	public synchronized Set<String> keys()
+	{
+		return Collections.unmodifiableSet(new LinkedHashMap<>(index).keySet());
+	}
+	
+	
+	/**
+	 * @param key record key
+	 * @return true if there is a record with the key
+	 */
+	public synchronized boolean contains(String key)
+	{
+		return index.containsKey(key);
+	}
+	
+	
+	/**
+	 * Read the latest version of a record
+	 *
+	 * @param key record key
+	 * @return the object, or null if there's no such record
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T read(String key) throws IOException
+	{
+		checkOpen();
+		
+		final Record record = index.get(key);
+		if (record == null) return null;
+		
+		try(final IonInput in = new IonInput(new ChannelRegionInput(channel, record.offset + ENTRY_HEADER_SIZE, record.length - ENTRY_HEADER_SIZE, BufferPool.DEFAULT_SIZE))) {
+			in.readIntByte(); // op
+			in.readObject(); // key
+			return (T) in.readObject();
+		}
+	}
+	
+	
+	/**
+	 * Read latest versions of all records
+	 *
+	 * @return map of records, in order of their last write
+	 * @throws IOException
+	 */
+	public synchronized Map<String, Object> readAll() throws IOException
+	{
+		final Map<String, Object> map = new LinkedHashMap<>();
+		for (final String key : index.keySet()) {
+			map.put(key, this.<Object> read(key));
+		}
+		return map;
+	}
+	
+	
+	/**
+	 * Append a new version of a record
+	 *
+	 * @param key record key
+	 * @param obj stored object
+	 * @throws IOException
+	 */
+	public synchronized void write(String key, Object obj) throws IOException
+	{
+		if (key == null) throw new NullPointerException("Key must not be null.");
+		
+		final int length = append(OP_PUT, key, obj);
+		putRecord(key, new Record(end - length, length));
+		
+		checkGarbage();
+	}
+	
+	
+	/**
+	 * Append removal of a record
+	 *
+	 * @param key record key
+	 * @return true if there was such record
+	 * @throws IOException
+	 */
+	public synchronized boolean remove(String key) throws IOException
+	{
+		if (!index.containsKey(key)) return false;
+		
+		append(OP_REMOVE, key, null);
+		removeRecord(key);
+		
+		checkGarbage();
+		return true;
+	}
+	
+	
+	/**
+	 * Encode and append an entry
+	 *
+	 * @return entry length
+	 */
+	private int append(int op, String key, Object obj) throws IOException
+	{
+		checkOpen();
+		
+		scratch.reset();
+		
+		// space for entry header
+		scratch.writeLong(0);
+		
+		final IonOutput out = new IonOutput(scratch);
+		out.writeIntByte(op);
+		if (format != 0) out.writeFormat(format);
+		out.writeObject(key);
+		if (op == OP_PUT) out.writeObject(obj);
+		out.close(); // finishes compressed data
+		
+		final int length = scratch.size();
+		final int payloadLength = length - ENTRY_HEADER_SIZE;
+		
+		crc.reset();
+		crc.update(scratch.array(), ENTRY_HEADER_SIZE, payloadLength);
+		
+		final ByteBuffer entry = ByteBuffer.wrap(scratch.array(), 0, length);
+		entry.putInt(0, payloadLength);
+		entry.putInt(4, (int) crc.getValue());
+		
+		writeFully(channel, entry, end);
+		end += length;
+		
+		return length;
+	}
+	
+	
+	/**
+	 * @return current ratio of garbage to total log size
+	 */
+	public synchronized double getGarbage()
+	{
+		final long total = end - HEADER_SIZE;
+		return total == 0 ? 0 : 1 - (double) liveBytes / total;
+	}
+	
+	
+	private void checkGarbage()
+	{
+		if (compacting || end < MIN_COMPACT_SIZE || getGarbage() <= garbageRatio) return;
+		
+		compacting = true;
+		
+		final Thread thread = new Thread("ION journal compactor") {
+			
+			@Override
+			public void run()
+			{
+				try {
+					doCompact();
+				} catch (final IOException e) {
+					Log.w("Failed to compact ION journal " + path, e);
+				}
+			}
+		};
+		
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	
+	/**
+	 * Compact the log now, in the calling thread. If a compaction is already
+	 * running, waits for it to finish first.
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException
+	{
+		synchronized (this) {
+			while (compacting) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			
+			compacting = true;
+		}
+		
+		doCompact();
+	}
+	
+	
+	/**
+	 * Copy live entries to a new file and replace the log with it. Writes may
+	 * continue while copying; entries appended meanwhile are copied at the
+	 * end, with the journal locked.
+	 */
+	private void doCompact() throws IOException
+	{
+		final File temp = new File(path.getPath() + ".compact");
+		
+		try {
+			final Map<String, Record> snapshot;
+			final long snapshotEnd;
+			final FileChannel source;
+			
+			synchronized (this) {
+				checkOpen();
+				snapshot = new LinkedHashMap<>(index);
+				snapshotEnd = end;
+				source = channel;
+			}
+			
+			final RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				out.setLength(0);
+				final FileChannel target = out.getChannel();
+				
+				writeHeader(target);
+				
+				long pos = HEADER_SIZE;
+				final Map<String, Record> moved = new HashMap<>();
+				for (final Map.Entry<String, Record> e : snapshot.entrySet()) {
+					final Record rec = e.getValue();
+					transferFully(source, rec.offset, rec.length, target, pos);
+					moved.put(e.getKey(), new Record(pos, rec.length));
+					pos += rec.length;
+				}
+				
+				synchronized (this) {
+					checkOpen();
+					
+					// entries written during the copy
+					final long tail = end - snapshotEnd;
+					transferFully(channel, snapshotEnd, tail, target, pos);
+					
+					final long shift = pos - snapshotEnd;
+					final Map<String, Record> newIndex = new LinkedHashMap<>();
+					for (final Map.Entry<String, Record> e : index.entrySet()) {
+						final Record rec = e.getValue();
+						newIndex.put(e.getKey(), rec.offset >= snapshotEnd ? new Record(rec.offset + shift, rec.length) : moved.get(e.getKey()));
+					}
+					
+					// closed before the rename, so it works on all platforms
+					target.force(true);
+					out.close();
+					file.close();
+					
+					try {
+						Files.move(temp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (final AtomicMoveNotSupportedException e) {
+						Files.move(temp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					} finally {
+						open();
+					}
+					
+					index = newIndex;
+					end = pos + tail;
+				}
+			} finally {
+				out.close(); // if the copy failed
+			}
+		} finally {
+			if (temp.exists()) temp.delete();
+			
+			synchronized (this) {
+				compacting = false;
+				notifyAll();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Force written entries to the storage device.
+	 */
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		checkOpen();
+		channel.force(false);
+	}
+	
+	
+	/**
+	 * Close the journal. A running compaction is abandoned.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (closed) return;
+		
+		closed = true;
+		file.close();
+	}
+	
+	
+	private void checkOpen() throws IOException
+	{
+		if (closed) throw new IOException("Journal is closed.");
+	}
+	
+	
+	private static void writeFully(FileChannel target, ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining()) {
+			position += target.write(buf, position);
+		}
+	}
+	
+	
+	/**
+	 * Read until the buffer is full, then flip it.
+	 *
+	 * @return false if end of file was reached first
+	 */
+	private static boolean readFully(FileChannel source, ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining()) {
+			final int n = source.read(buf, position);
+			if (n < 0) return false;
+			position += n;
+		}
+		
+		buf.flip();
+		return true;
+	}
+	
+	
+	private static void transferFully(FileChannel source, long position, long count, FileChannel target, long targetPosition) throws IOException
+	{
+		target.position(targetPosition);
+		while (count > 0) {
+			final long n = source.transferTo(position, count, target);
+			if (n <= 0) throw new IOException("Could not copy journal entries.");
+			position += n;
+			count -= n;
+		}
+	}
+}
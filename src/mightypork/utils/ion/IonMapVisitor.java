@@ -0,0 +1,25 @@
+package mightypork.utils.ion;
+
+
+import java.io.IOException;
+
+
+/**
+ * Receives entries of a map as they are read from an {@link IonInput}, without
+ * building the whole map in memory.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ * @param <K> key type
+ * @param <V> value type
+ */
+public interface IonMapVisitor<K, V> {
+	
+	/**
+	 * Handle a map entry
+	 *
+	 * @param key entry key
+	 * @param value entry value
+	 * @throws IOException
+	 */
+	void visit(K key, V value) throws IOException;
+}
@@ -2,8 +2,14 @@ package mightypork.utils.ion;
 
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+
+import mightypork.utils.exceptions.CorruptDataException;
 
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -11,6 +17,13 @@ class IonMapWrapper implements IonBinary {
 	
 	private final Map map;
 	
+	/** The map is held by the caller too, so changes can't be tracked */
+	private boolean external;
+	/** Some keys or values may be modified by the caller, and are not bundles */
+	private boolean untracked;
+	/** Changed since last marked clean, apart from changes in value bundles */
+	private boolean changed = true;
+	
 	
 	public IonMapWrapper()
 	{
@@ -21,6 +34,7 @@ class IonMapWrapper implements IonBinary {
 	public IonMapWrapper(Map saved)
 	{
 		map = saved;
+		external = true;
 	}
 	
 	
@@ -29,6 +43,7 @@ class IonMapWrapper implements IonBinary {
 	{
 		map.clear();
 		in.readMap(map);
+		changed = false;
 	}
 	
 	
@@ -43,12 +58,209 @@ class IonMapWrapper implements IonBinary {
 	{
 		o.clear();
 		o.putAll(map);
+		
+		// the keys and values can be modified through the copy
+		checkTracked();
 	}
 	
 	
+	/**
+	 * Check if the keys and values handed out can be tracked; if not, the map
+	 * is treated as changed from now on.
+	 */
+	private void checkTracked()
+	{
+		if (untracked || (IonSequenceWrapper.allTracked(map.keySet()) && IonSequenceWrapper.allTracked(map.values()))) return;
+		
+		untracked = true;
+		changed = true;
+	}
+	
+	
+	/**
+	 * @return view of the map, tracking changes made through it
+	 */
 	public Map getMap()
 	{
-		return map;
+		checkTracked();
+		
+		return new AbstractMap() {
+			
+			@Override
+			public Set entrySet()
+			{
+				return new AbstractSet() {
+					
+					@Override
+					public Iterator iterator()
+					{
+						final Iterator iterator = map.entrySet().iterator();
+						
+						return new Iterator() {
+							
+							@Override
+							public boolean hasNext()
+							{
+								return iterator.hasNext();
+							}
+							
+							
+							@Override
+							public Object next()
+							{
+								final Map.Entry entry = (Map.Entry) iterator.next();
+								
+								return new AbstractMap.SimpleEntry(entry) {
+									
+									@Override
+									public Object setValue(Object value)
+									{
+										entry.setValue(value);
+										changed = true;
+										if (!IonSequenceWrapper.isTracked(value)) untracked = true;
+										return super.setValue(value);
+									}
+								};
+							}
+							
+							
+							@Override
+							public void remove()
+							{
+								iterator.remove();
+								changed = true;
+							}
+						};
+					}
+					
+					
+					@Override
+					public int size()
+					{
+						return map.size();
+					}
+				};
+			}
+			
+			
+			@Override
+			public int size()
+			{
+				return map.size();
+			}
+			
+			
+			@Override
+			public boolean containsKey(Object key)
+			{
+				return map.containsKey(key);
+			}
+			
+			
+			@Override
+			public Object get(Object key)
+			{
+				return map.get(key);
+			}
+			
+			
+			@Override
+			public Object put(Object key, Object value)
+			{
+				changed = true;
+				if (!IonSequenceWrapper.isTracked(key) || !IonSequenceWrapper.isTracked(value)) untracked = true;
+				return map.put(key, value);
+			}
+			
+			
+			@Override
+			public Object remove(Object key)
+			{
+				if (!map.containsKey(key)) return null;
+				
+				changed = true;
+				return map.remove(key);
+			}
+		};
+	}
+	
+	
+	/**
+	 * Check if the contents may have changed since last marked clean,
+	 * including changes in value bundles.
+	 *
+	 * @return true if possibly changed
+	 */
+	public boolean isDirty()
+	{
+		if (changed) return true;
+		
+		for (final Object value : map.values()) {
+			if (value instanceof IonDataBundle && ((IonDataBundle) value).isDirty()) return true;
+		}
+		
+		return false;
+	}
+	
+	
+	/**
+	 * Check if the map must be written whole - it was changed (not only its
+	 * value bundles), or its changes can't be tracked.
+	 *
+	 * @return true if changed
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+	
+	
+	public void markClean()
+	{
+		changed = external || untracked;
+		
+		for (final Object value : map.values()) {
+			if (value instanceof IonDataBundle) ((IonDataBundle) value).markClean();
+		}
+	}
+	
+	
+	/**
+	 * Write deltas of changed value bundles, by key
+	 *
+	 * @param out output
+	 * @throws IOException
+	 */
+	public void writeDelta(IonOutput out) throws IOException
+	{
+		for (final Object entry : map.entrySet()) {
+			final Map.Entry e = (Map.Entry) entry;
+			if (e.getValue() instanceof IonDataBundle && ((IonDataBundle) e.getValue()).isDirty()) {
+				out.startEntry();
+				out.writeObject(e.getKey());
+				((IonDataBundle) e.getValue()).writeDelta(out);
+			}
+		}
+		
+		out.endSequence();
+	}
+	
+	
+	/**
+	 * Apply deltas written by <code>writeDelta()</code> to the value bundles
+	 *
+	 * @param in input
+	 * @throws IOException
+	 */
+	public void applyDelta(IonInput in) throws IOException
+	{
+		while (in.hasNextEntry()) {
+			final Object key = in.readObject();
+			final Object value = map.get(key);
+			
+			if (!(value instanceof IonDataBundle)) throw new CorruptDataException("Map delta for a value which is not a bundle: " + key);
+			((IonDataBundle) value).applyDelta(in);
+		}
 	}
 	
 }
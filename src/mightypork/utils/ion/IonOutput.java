@@ -7,11 +7,23 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+import mightypork.utils.Str;
 
 
 /**
@@ -19,23 +31,273 @@ import java.util.Map.Entry;
  *
  * @author Ondřej Hruška (MightyPork)
  */
-public class IonOutput implements Closeable {
+public class IonOutput implements Closeable, Flushable {
+	
+	private DataOutput out;
+	private Closeable stream;
+	
+	/** Buffered output for bulk writes, null if not buffered */
+	private ByteBufferOutput buffered;
+	
+	/** Active format flags */
+	private int format;
+	/** Varint mode, see {@link Ion#FORMAT_COMPACT} */
+	private boolean compact;
+	/** String -> index, see {@link Ion#FORMAT_STRING_TABLE}; null if disabled */
+	private Map<String, Integer> stringTable;
+	/** Object -> handle, see {@link Ion#FORMAT_IDENTITY}; null if disabled */
+	private Map<Object, Integer> handles;
+	
+	/** Pool for encoding large arrays and sequences, null if disabled */
+	private ForkJoinPool parallel;
+	/** Elements per segment in parallel mode */
+	private int segmentSize = Ion.DEFAULT_SEGMENT_SIZE;
+	
+	/** Level used when compression is turned on */
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 	
-	private final DataOutput out;
-	private final OutputStream stream;
+	/** Registry of types to save */
+	private IonTypes types = Ion.getDefaultTypes();
 	
+	/** Buffer for encoding short strings, see {@link Ion#FORMAT_UTF8} */
+	private byte[] stringBuffer;
 	
+	/** Statistics of written objects, null if disabled */
+	private StatsRecorder stats = StatsRecorder.create(Ion.getStats());
+	
+	
+	/**
+	 * Open a buffered output for a file
+	 *
+	 * @param outFile file to write
+	 * @throws FileNotFoundException
+	 */
 	@SuppressWarnings("resource")
 	public IonOutput(File outFile) throws FileNotFoundException
 	{
-		this(new FileOutputStream(outFile));
+		this(new FileOutputStream(outFile), BufferPool.DEFAULT_SIZE, false);
 	}
 	
 	
+	/**
+	 * Create an unbuffered output. Each value is written to the stream right
+	 * away.
+	 *
+	 * @param out stream to write
+	 */
 	public IonOutput(OutputStream out)
 	{
 		this.stream = out;
 		this.out = new DataOutputStream(out);
+		this.buffered = null;
+	}
+	
+	
+	/**
+	 * Create a buffered output. Data is staged in a pooled byte buffer,
+	 * primitive arrays are encoded in bulk, and the buffer is written to the
+	 * stream in large chunks. The wire format is the same as with an
+	 * unbuffered output.<br>
+	 * The output must be flushed or closed to write out the buffered data.
+	 *
+	 * @param out stream to write
+	 * @param bufferSize buffer size (bytes)
+	 * @param direct use a direct byte buffer
+	 */
+	public IonOutput(OutputStream out, int bufferSize, boolean direct)
+	{
+		this(new ChannelBufferOutput(out, bufferSize, direct));
+	}
+	
+	
+	IonOutput(ByteBufferOutput out)
+	{
+		this.stream = out;
+		this.out = out;
+		this.buffered = out;
+	}
+	
+	
+	/**
+	 * Write a format header and switch this output to the given format. An
+	 * input switches to the format automatically when it reads the header.<br>
+	 * The header should be written before the first object. If compression is
+	 * turned on, the output must be closed to write out all data.
+	 *
+	 * @param flags format flags (Ion.FORMAT_*)
+	 * @throws IOException
+	 */
+	public void writeFormat(int flags) throws IOException
+	{
+		if ((flags & ~Ion.FORMAT_SUPPORTED) != 0) {
+			throw new IllegalArgumentException("Unsupported format flags: " + flags);
+		}
+		
+		final boolean deflate = (flags & Ion.FORMAT_DEFLATE) != 0;
+		if (hasFormat(Ion.FORMAT_DEFLATE) && !deflate) {
+			throw new IllegalArgumentException("Compression can't be turned off within a stream.");
+		}
+		
+		writeMark(Ion.FORMAT);
+		writeIntShort(flags);
+		
+		if (deflate && !hasFormat(Ion.FORMAT_DEFLATE)) {
+			final DeflateBlockOutput deflated = new DeflateBlockOutput(out, stream, compressionLevel, parallel);
+			out = deflated;
+			stream = deflated;
+			buffered = deflated;
+		}
+		
+		setFormat(flags);
+	}
+	
+	
+	/**
+	 * Set compression level used when compression is turned on by a format
+	 * header. Must be called before writing the header.
+	 *
+	 * @param level level 0-9 (see {@link Deflater})
+	 */
+	public void setCompressionLevel(int level)
+	{
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		
+		this.compressionLevel = level;
+	}
+	
+	
+	/**
+	 * Switch to a format without writing a header
+	 *
+	 * @param flags format flags
+	 */
+	void setFormat(int flags)
+	{
+		format = flags;
+		compact = (flags & Ion.FORMAT_COMPACT) != 0;
+		
+		if ((flags & Ion.FORMAT_STRING_TABLE) == 0) {
+			stringTable = null;
+		} else if (stringTable == null) {
+			stringTable = new HashMap<>();
+		}
+		
+		if ((flags & Ion.FORMAT_IDENTITY) == 0) {
+			handles = null;
+		} else if (handles == null) {
+			handles = new IdentityHashMap<>();
+		}
+	}
+	
+	
+	/**
+	 * @param flag format flag(s) to check
+	 * @return true if all the given format flags are active
+	 */
+	boolean hasFormat(int flag)
+	{
+		return (format & flag) == flag;
+	}
+	
+	
+	/**
+	 * Enable parallel encoding. Object arrays and sequences with at least two
+	 * segments of elements are split to segments, encoded on the pool, and
+	 * written in order, each prefixed with its length. Such data can be read
+	 * by any input, and decoded in parallel if the input has a pool set.<br>
+	 * Segments are encoded independently - strings and object references in a
+	 * segment are not shared with the rest of the stream. The elements must be
+	 * safe to save concurrently, and no types may be registered while saving.<br>
+	 * Compressed data (see {@link Ion#FORMAT_DEFLATE}) is then also compressed
+	 * on the pool, block by block, if the pool is set before the format header
+	 * is written.
+	 *
+	 * @param pool pool to use, null to disable
+	 * @param segmentSize number of elements in a segment
+	 */
+	public void setParallel(ForkJoinPool pool, int segmentSize)
+	{
+		if (segmentSize < 1) throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+		
+		this.parallel = pool;
+		this.segmentSize = segmentSize;
+	}
+	
+	
+	/**
+	 * Set the type registry used to save objects. By default, the registry of
+	 * {@link Ion} is used.
+	 *
+	 * @param types type registry
+	 */
+	public void setTypes(IonTypes types)
+	{
+		if (types == null) throw new NullPointerException("Types must not be null.");
+		
+		this.types = types;
+	}
+	
+	
+	/**
+	 * @return the type registry in use
+	 */
+	public IonTypes getTypes()
+	{
+		return types;
+	}
+	
+	
+	/**
+	 * Record count, size and time of written objects by type. Must not be
+	 * called while writing an object.
+	 *
+	 * @param stats statistics to record to, null to disable
+	 */
+	public void setStats(IonStats stats)
+	{
+		this.stats = StatsRecorder.create(stats);
+	}
+	
+	
+	/**
+	 * @return statistics recorded to, null if disabled
+	 */
+	public IonStats getStats()
+	{
+		return stats == null ? null : stats.getStats();
+	}
+	
+	
+	/**
+	 * @return number of bytes written so far (an unbuffered output stops
+	 *         counting at 2 GB)
+	 */
+	private long position()
+	{
+		return buffered != null ? buffered.position() : ((DataOutputStream) out).size();
+	}
+	
+	
+	/**
+	 * Enable parallel encoding, with the default segment size.
+	 *
+	 * @param pool pool to use, null to disable
+	 * @see #setParallel(ForkJoinPool, int)
+	 */
+	public void setParallel(ForkJoinPool pool)
+	{
+		setParallel(pool, Ion.DEFAULT_SEGMENT_SIZE);
+	}
+	
+	
+	/**
+	 * @return active format flags
+	 */
+	public int getFormat()
+	{
+		return format;
 	}
 	
 	
@@ -53,7 +315,12 @@ public class IonOutput implements Closeable {
 	
 	public void writeShort(int a) throws IOException
 	{
-		out.writeShort(a);
+		if (compact) {
+			final short v = (short) a;
+			writeVarInt((v << 1) ^ (v >> 15));
+		} else {
+			out.writeShort(a);
+		}
 	}
 	
 	
@@ -65,7 +332,11 @@ public class IonOutput implements Closeable {
 	
 	public void writeInt(int a) throws IOException
 	{
-		out.writeInt(a);
+		if (compact) {
+			writeVarInt((a << 1) ^ (a >> 31));
+		} else {
+			out.writeInt(a);
+		}
 	}
 	
 	
@@ -83,7 +354,44 @@ public class IonOutput implements Closeable {
 	
 	public void writeLong(long a) throws IOException
 	{
-		out.writeLong(a);
+		if (compact) {
+			writeVarLong((a << 1) ^ (a >> 63));
+		} else {
+			out.writeLong(a);
+		}
+	}
+	
+	
+	/**
+	 * Write an int as unsigned LEB128 varint (1-5 bytes). Small positive
+	 * numbers take less space; negative numbers always take 5 bytes.
+	 *
+	 * @param a int to write
+	 * @throws IOException
+	 */
+	public void writeVarInt(int a) throws IOException
+	{
+		while ((a & ~0x7F) != 0) {
+			out.writeByte((a & 0x7F) | 0x80);
+			a >>>= 7;
+		}
+		out.writeByte(a);
+	}
+	
+	
+	/**
+	 * Write a long as unsigned LEB128 varint (1-10 bytes).
+	 *
+	 * @param a long to write
+	 * @throws IOException
+	 */
+	public void writeVarLong(long a) throws IOException
+	{
+		while ((a & ~0x7FL) != 0) {
+			out.writeByte((int) (a & 0x7F) | 0x80);
+			a >>>= 7;
+		}
+		out.writeByte((int) a);
 	}
 	
 	
@@ -107,15 +415,82 @@ public class IonOutput implements Closeable {
 	
 	public void writeString(String a) throws IOException
 	{
-		out.writeUTF(a);
+		if (stringTable != null) {
+			// 0 = inline string follows, n = n-th string in the table
+			final Integer index = stringTable.get(a);
+			if (index != null) {
+				writeVarInt(index + 1);
+				return;
+			}
+			
+			writeVarInt(0);
+			if (a.length() <= Ion.STRING_TABLE_MAX_LENGTH) {
+				stringTable.put(a, stringTable.size());
+			}
+		}
+		
+		if (hasFormat(Ion.FORMAT_UTF8)) {
+			writeStringBytes(a);
+		} else {
+			out.writeUTF(a);
+		}
+	}
+	
+	
+	/**
+	 * Write a string with a varint length. The lowest bit of the length is set
+	 * if the string is in Latin-1 (one byte per char), otherwise it's UTF-8.
+	 *
+	 * @param a string to write
+	 * @throws IOException
+	 */
+	private void writeStringBytes(String a) throws IOException
+	{
+		final int length = a.length();
+		
+		boolean latin1 = true;
+		for (int i = 0; i < length; i++) {
+			if (a.charAt(i) > 0xFF) {
+				latin1 = false;
+				break;
+			}
+		}
+		
+		if (latin1) {
+			final byte[] bytes;
+			if (length <= Ion.STRING_BUFFER_SIZE) {
+				if (stringBuffer == null) stringBuffer = new byte[Ion.STRING_BUFFER_SIZE];
+				bytes = stringBuffer;
+			} else {
+				if (length > Integer.MAX_VALUE >> 1) throw new IOException("String too long.");
+				bytes = new byte[length];
+			}
+			
+			for (int i = 0; i < length; i++) {
+				bytes[i] = (byte) a.charAt(i);
+			}
+			
+			writeVarInt((length << 1) | 1);
+			out.write(bytes, 0, length);
+		} else {
+			final byte[] bytes = a.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length > Integer.MAX_VALUE >> 1) throw new IOException("String too long.");
+			
+			writeVarInt(bytes.length << 1);
+			out.write(bytes);
+		}
 	}
 	
 	
 	public void writeBooleans(boolean[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final boolean a : arr) {
-			out.writeBoolean(a);
+		if (buffered != null) {
+			buffered.writeBooleans(arr, 0, arr.length);
+		} else {
+			for (final boolean a : arr) {
+				out.writeBoolean(a);
+			}
 		}
 	}
 	
@@ -123,17 +498,19 @@ public class IonOutput implements Closeable {
 	public void writeBytes(byte[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final byte a : arr) {
-			out.writeByte(a);
-		}
+		out.write(arr);
 	}
 	
 	
 	public void writeChars(char[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final char a : arr) {
-			out.writeChar(a);
+		if (buffered != null) {
+			buffered.writeChars(arr, 0, arr.length);
+		} else {
+			for (final char a : arr) {
+				out.writeChar(a);
+			}
 		}
 	}
 	
@@ -141,8 +518,16 @@ public class IonOutput implements Closeable {
 	public void writeShorts(short[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final short a : arr) {
-			out.writeShort(a);
+		if (compact) {
+			for (final short a : arr) {
+				writeShort(a);
+			}
+		} else if (buffered != null) {
+			buffered.writeShorts(arr, 0, arr.length);
+		} else {
+			for (final short a : arr) {
+				out.writeShort(a);
+			}
 		}
 	}
 	
@@ -150,8 +535,16 @@ public class IonOutput implements Closeable {
 	public void writeInts(int[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final int a : arr) {
-			out.writeInt(a);
+		if (compact) {
+			for (final int a : arr) {
+				writeInt(a);
+			}
+		} else if (buffered != null) {
+			buffered.writeInts(arr, 0, arr.length);
+		} else {
+			for (final int a : arr) {
+				out.writeInt(a);
+			}
 		}
 	}
 	
@@ -159,8 +552,16 @@ public class IonOutput implements Closeable {
 	public void writeLongs(long[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final long a : arr) {
-			out.writeLong(a);
+		if (compact) {
+			for (final long a : arr) {
+				writeLong(a);
+			}
+		} else if (buffered != null) {
+			buffered.writeLongs(arr, 0, arr.length);
+		} else {
+			for (final long a : arr) {
+				out.writeLong(a);
+			}
 		}
 	}
 	
@@ -168,8 +569,12 @@ public class IonOutput implements Closeable {
 	public void writeFloats(float[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final float a : arr) {
-			out.writeFloat(a);
+		if (buffered != null) {
+			buffered.writeFloats(arr, 0, arr.length);
+		} else {
+			for (final float a : arr) {
+				out.writeFloat(a);
+			}
 		}
 	}
 	
@@ -177,8 +582,12 @@ public class IonOutput implements Closeable {
 	public void writeDoubles(double[] arr) throws IOException
 	{
 		writeLength(arr.length);
-		for (final double a : arr) {
-			out.writeDouble(a);
+		if (buffered != null) {
+			buffered.writeDoubles(arr, 0, arr.length);
+		} else {
+			for (final double a : arr) {
+				out.writeDouble(a);
+			}
 		}
 	}
 	
@@ -187,7 +596,7 @@ public class IonOutput implements Closeable {
 	{
 		writeLength(arr.length);
 		for (final String a : arr) {
-			out.writeUTF(a);
+			writeString(a);
 		}
 	}
 	
@@ -241,6 +650,215 @@ public class IonOutput implements Closeable {
 	}
 	
 	
+	/**
+	 * Write a value of a bundle entry. With sized bundles, the value is prefixed
+	 * with its encoded length, and encoded independently of the rest of the
+	 * stream, so it can be skipped or decoded separately.
+	 *
+	 * @param obj written object
+	 * @throws IOException
+	 */
+	void writeBundleValue(Object obj) throws IOException
+	{
+		final boolean sized = hasFormat(Ion.FORMAT_SIZED_BUNDLES);
+		
+		if (obj instanceof IonSlice) {
+			final IonSlice slice = (IonSlice) obj;
+			if (sized && slice.format == format) {
+				// still encoded, copy as is
+				writeLength(slice.data.length);
+				out.write(slice.data);
+				return;
+			}
+			
+			obj = slice.decode();
+		}
+		
+		if (!sized) {
+			writeObject(obj);
+			return;
+		}
+		
+		final MemoryBufferOutput encoded = new MemoryBufferOutput(64);
+		final IonOutput sub = new IonOutput(encoded);
+		sub.setFormat(format);
+		sub.setTypes(types);
+		sub.stats = stats;
+		sub.writeObject(obj);
+		
+		writeLength(encoded.size());
+		encoded.writeTo(out);
+	}
+	
+	
+	/**
+	 * Write a primitive value of a bundle entry, without boxing.
+	 *
+	 * @param mark mark of the primitive type
+	 * @param bits value bits, as stored in a bundle
+	 * @throws IOException
+	 */
+	void writeBundlePrimitive(int mark, long bits) throws IOException
+	{
+		if (hasFormat(Ion.FORMAT_SIZED_BUNDLES)) {
+			writeLength(1 + primitiveSize(mark, bits));
+		}
+		
+		writeMark(mark);
+		
+		switch (mark) {
+			case Ion.BOOLEAN:
+				writeBoolean(bits != 0);
+				return;
+				
+			case Ion.BYTE:
+				writeByte((int) bits);
+				return;
+				
+			case Ion.CHAR:
+				writeChar((int) bits);
+				return;
+				
+			case Ion.SHORT:
+				writeShort((int) bits);
+				return;
+				
+			case Ion.INT:
+				writeInt((int) bits);
+				return;
+				
+			case Ion.LONG:
+				writeLong(bits);
+				return;
+				
+			case Ion.FLOAT:
+				writeFloat(Float.intBitsToFloat((int) bits));
+				return;
+				
+			case Ion.DOUBLE:
+				writeDouble(Double.longBitsToDouble(bits));
+				return;
+				
+			default:
+				throw new IllegalArgumentException("Not a primitive mark: " + mark);
+		}
+	}
+	
+	
+	/**
+	 * Get encoded size of a primitive value (without mark)
+	 */
+	private int primitiveSize(int mark, long bits)
+	{
+		switch (mark) {
+			case Ion.BOOLEAN:
+			case Ion.BYTE:
+				return 1;
+				
+			case Ion.CHAR:
+				return 2;
+				
+			case Ion.SHORT:
+				return compact ? varIntSize(((short) bits << 1) ^ ((short) bits >> 15)) : 2;
+				
+			case Ion.INT:
+				return compact ? varIntSize(((int) bits << 1) ^ ((int) bits >> 31)) : 4;
+				
+			case Ion.LONG:
+				return compact ? varLongSize((bits << 1) ^ (bits >> 63)) : 8;
+				
+			case Ion.FLOAT:
+				return 4;
+				
+			default:
+				return 8;
+		}
+	}
+	
+	
+	/**
+	 * @return number of bytes taken by a varint
+	 */
+	static int varIntSize(int a)
+	{
+		int size = 1;
+		while ((a & ~0x7F) != 0) {
+			a >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	
+	/**
+	 * @return number of bytes taken by a varlong
+	 */
+	static int varLongSize(long a)
+	{
+		int size = 1;
+		while ((a & ~0x7FL) != 0) {
+			a >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	
+	/**
+	 * Start writing a sequence object element by element, without building a
+	 * collection. Write the elements using <code>writeEntry()</code>, and
+	 * finish with <code>endSequence()</code>. The sequence can be read as any
+	 * other collection.
+	 *
+	 * @throws IOException
+	 */
+	public void startSequence() throws IOException
+	{
+		writeMark(Ion.SEQUENCE);
+	}
+	
+	
+	/**
+	 * Start writing a map object entry by entry, without building a map.
+	 * Write the entries using <code>writeEntry()</code>, and finish with
+	 * <code>endSequence()</code>. The map can be read as any other map.
+	 *
+	 * @throws IOException
+	 */
+	public void startMap() throws IOException
+	{
+		writeMark(Ion.MAP);
+	}
+	
+	
+	/**
+	 * Write an element of a sequence
+	 *
+	 * @param element the element
+	 * @throws IOException
+	 */
+	public void writeEntry(Object element) throws IOException
+	{
+		startEntry();
+		writeObject(element);
+	}
+	
+	
+	/**
+	 * Write an entry of a map
+	 *
+	 * @param key entry key
+	 * @param value entry value
+	 * @throws IOException
+	 */
+	public void writeEntry(Object key, Object value) throws IOException
+	{
+		startEntry();
+		writeObject(key);
+		writeObject(value);
+	}
+	
+	
 	public void endSequence() throws IOException
 	{
 		writeMark(Ion.END);
@@ -261,7 +879,11 @@ public class IonOutput implements Closeable {
 	
 	private void writeLength(int length) throws IOException
 	{
-		writeInt(length);
+		if (compact) {
+			writeVarInt(length);
+		} else {
+			out.writeInt(length);
+		}
 	}
 	
 	
@@ -279,173 +901,282 @@ public class IonOutput implements Closeable {
 			return;
 		}
 		
-		if (obj instanceof IonBinary) {
-			final IonBinary iObj = (IonBinary) obj;
-			
-			writeMark(Ion.getMark(obj));
-			iObj.save(this);
-			return;
-		}
-		
-		if (obj instanceof IonBundled) {
-			final IonBundled iObj = (IonBundled) obj;
-			
-			writeMark(Ion.getMark(obj));
-			
-			final IonDataBundle bundle = new IonDataBundle();
-			iObj.save(bundle);
-			writeBundle(bundle);
-			
-			return;
-		}
+		final IonType type = types.getType(obj.getClass());
 		
-		if (Ion.isObjectIndirectBundled(obj)) {
-			final IonizerBundled<?> ionizer = Ion.getIonizerBundledForClass(obj.getClass());
-			
-			writeMark(Ion.getMark(obj));
+		if (type == null) {
+			if (obj instanceof IonBinary || obj instanceof IonBundled) {
+				throw new RuntimeException("Type not registered: " + Str.val(obj.getClass()));
+			}
 			
-			final IonDataBundle bundle = new IonDataBundle();
-			ionizer._save(obj, bundle);
-			writeBundle(bundle);
-			return;
+			throw new IOException("Object " + obj + " could not be be written to stream.");
 		}
 		
-		if (Ion.isObjectIndirectBinary(obj)) {
-			final IonizerBinary<?> ionizer = Ion.getIonizerBinaryForClass(obj.getClass());
-			
-			writeMark(Ion.getMark(obj));
+		if (handles != null && type.kind != IonType.BUILTIN) {
+			final Integer handle = handles.get(obj);
+			if (handle != null) {
+				writeMark(Ion.REFERENCE);
+				writeVarInt(handle);
+				return;
+			}
 			
-			ionizer._save(obj, this);
-			return;
-		}
-		
-		if (obj instanceof Map) {
-			writeMark(Ion.MAP);
-			writeMap((Map<?, ?>) obj);
-			return;
-		}
-		
-		if (obj instanceof Collection) {
-			writeMark(Ion.SEQUENCE);
-			writeSequence((Collection<?>) obj);
-			return;
-		}
-		
-		if (obj instanceof Boolean) {
-			writeMark(Ion.BOOLEAN);
-			writeBoolean((Boolean) obj);
-			return;
+			// assigned before the contents are written, same as when reading
+			handles.put(obj, handles.size());
 		}
 		
-		if (obj instanceof Byte) {
-			writeMark(Ion.BYTE);
-			writeByte((Byte) obj);
+		if (stats == null) {
+			writeObject(obj, type);
 			return;
 		}
 		
-		if (obj instanceof Character) {
-			writeMark(Ion.CHAR);
-			writeChar((Character) obj);
-			return;
+		stats.begin(position());
+		try {
+			writeObject(obj, type);
+		} finally {
+			stats.end(type, position());
 		}
-		
-		if (obj instanceof Short) {
-			writeMark(Ion.SHORT);
-			writeShort((Short) obj);
-			return;
-		}
-		
-		if (obj instanceof Integer) {
-			writeMark(Ion.INT);
-			writeInt((Integer) obj);
-			return;
-		}
-		
-		if (obj instanceof Long) {
-			writeMark(Ion.LONG);
-			writeLong((Long) obj);
-			return;
-		}
-		
-		if (obj instanceof Float) {
-			writeMark(Ion.FLOAT);
-			writeFloat((Float) obj);
-			return;
+	}
+	
+	
+	/**
+	 * Write an object with a known type, not a reference
+	 *
+	 * @param obj obj to write
+	 * @param type the object's type
+	 * @throws IOException
+	 */
+	private void writeObject(Object obj, IonType type) throws IOException
+	{
+		if (parallel != null && type.kind == IonType.BUILTIN) {
+			if (type.mark == Ion.OBJECT_ARRAY && ((Object[]) obj).length >= segmentSize * 2) {
+				writeMark(Ion.SEGMENTED_ARRAY);
+				writeSegments((Object[]) obj);
+				return;
+			}
+			
+			if (type.mark == Ion.SEQUENCE && ((Collection<?>) obj).size() >= segmentSize * 2) {
+				writeMark(Ion.SEGMENTED_SEQUENCE);
+				writeSegments(((Collection<?>) obj).toArray());
+				return;
+			}
 		}
 		
-		if (obj instanceof Double) {
-			writeMark(Ion.DOUBLE);
-			writeDouble((Double) obj);
-			return;
-		}
+		writeMark(type.mark);
 		
-		if (obj instanceof String) {
-			writeMark(Ion.STRING);
-			writeString((String) obj);
-			return;
+		switch (type.kind) {
+			case IonType.BINARY:
+				if (obj instanceof IonSized && buffered instanceof CountingOutput) {
+					// only measuring, the object knows its size
+					final int size = ((IonSized) obj).getIonSize(format);
+					if (size >= 0) {
+						((CountingOutput) buffered).skip(size);
+						return;
+					}
+				}
+				
+				((IonBinary) obj).save(this);
+				return;
+				
+			case IonType.BUNDLED: {
+				final IonDataBundle bundle = new IonDataBundle();
+				((IonBundled) obj).save(bundle);
+				writeBundle(bundle);
+				return;
+			}
+			
+			case IonType.INDIRECT_BUNDLED: {
+				final IonDataBundle bundle = new IonDataBundle();
+				type.ionizerBundled._save(obj, bundle);
+				writeBundle(bundle);
+				return;
+			}
+			
+			case IonType.INDIRECT_BINARY:
+				type.ionizerBinary._save(obj, this);
+				return;
+				
+			default:
+				writeBuiltin(type.mark, obj);
 		}
-		
-		if (obj instanceof boolean[]) {
-			writeMark(Ion.BOOLEAN_ARRAY);
-			writeBooleans((boolean[]) obj);
-			return;
+	}
+	
+	
+	/**
+	 * Encode elements in segments on the parallel pool, and write them in
+	 * order.
+	 *
+	 * @param arr elements
+	 * @throws IOException
+	 */
+	private void writeSegments(Object[] arr) throws IOException
+	{
+		final List<ForkJoinTask<MemoryBufferOutput>> tasks = new ArrayList<>();
+		for (int from = 0; from < arr.length; from += segmentSize) {
+			tasks.add(parallel.submit(new SegmentEncoder(arr, from, Math.min(from + segmentSize, arr.length))));
 		}
 		
-		if (obj instanceof byte[]) {
-			writeMark(Ion.BYTE_ARRAY);
-			writeBytes((byte[]) obj);
-			return;
-		}
+		writeLength(arr.length);
+		writeLength(tasks.size());
 		
-		if (obj instanceof char[]) {
-			writeMark(Ion.CHAR_ARRAY);
-			writeChars((char[]) obj);
-			return;
+		int from = 0;
+		for (final ForkJoinTask<MemoryBufferOutput> task : tasks) {
+			final MemoryBufferOutput encoded = Ion.await(task);
+			
+			writeLength(Math.min(segmentSize, arr.length - from));
+			writeLength(encoded.size());
+			encoded.writeTo(out);
+			if (stats != null) stats.addNestedBytes(encoded.size());
+			
+			from += segmentSize;
 		}
+	}
+	
+	
+	private class SegmentEncoder implements Callable<MemoryBufferOutput> {
 		
-		if (obj instanceof short[]) {
-			writeMark(Ion.SHORT_ARRAY);
-			writeShorts((short[]) obj);
-			return;
-		}
+		private final Object[] arr;
+		private final int from;
+		private final int to;
 		
-		if (obj instanceof int[]) {
-			writeMark(Ion.INT_ARRAY);
-			writeInts((int[]) obj);
-			return;
-		}
 		
-		if (obj instanceof long[]) {
-			writeMark(Ion.LONG_ARRAY);
-			writeLongs((long[]) obj);
-			return;
+		public SegmentEncoder(Object[] arr, int from, int to)
+		{
+			this.arr = arr;
+			this.from = from;
+			this.to = to;
 		}
 		
-		if (obj instanceof float[]) {
-			writeMark(Ion.FLOAT_ARRAY);
-			writeFloats((float[]) obj);
-			return;
-		}
 		
-		if (obj instanceof double[]) {
-			writeMark(Ion.DOUBLE_ARRAY);
-			writeDoubles((double[]) obj);
-			return;
+		@Override
+		public MemoryBufferOutput call() throws IOException
+		{
+			final MemoryBufferOutput encoded = new MemoryBufferOutput(1024);
+			final IonOutput sub = new IonOutput(encoded);
+			sub.setFormat(format);
+			sub.setTypes(types);
+			sub.stats = stats == null ? null : new StatsRecorder(stats.getStats());
+			
+			for (int i = from; i < to; i++) {
+				sub.writeObject(arr[i]);
+			}
+			
+			return encoded;
 		}
-		
-		if (obj instanceof String[]) {
-			writeMark(Ion.STRING_ARRAY);
-			writeStrings((String[]) obj);
-			return;
+	}
+	
+	
+	/**
+	 * Write a built-in object without a mark
+	 *
+	 * @param mark the object's mark
+	 * @param obj written object
+	 * @throws IOException
+	 */
+	private void writeBuiltin(int mark, Object obj) throws IOException
+	{
+		switch (mark) {
+			case Ion.MAP:
+				writeMap((Map<?, ?>) obj);
+				return;
+				
+			case Ion.SEQUENCE:
+				writeSequence((Collection<?>) obj);
+				return;
+				
+			case Ion.BOOLEAN:
+				writeBoolean((Boolean) obj);
+				return;
+				
+			case Ion.BYTE:
+				writeByte((Byte) obj);
+				return;
+				
+			case Ion.CHAR:
+				writeChar((Character) obj);
+				return;
+				
+			case Ion.SHORT:
+				writeShort((Short) obj);
+				return;
+				
+			case Ion.INT:
+				writeInt((Integer) obj);
+				return;
+				
+			case Ion.LONG:
+				writeLong((Long) obj);
+				return;
+				
+			case Ion.FLOAT:
+				writeFloat((Float) obj);
+				return;
+				
+			case Ion.DOUBLE:
+				writeDouble((Double) obj);
+				return;
+				
+			case Ion.STRING:
+				writeString((String) obj);
+				return;
+				
+			case Ion.BOOLEAN_ARRAY:
+				writeBooleans((boolean[]) obj);
+				return;
+				
+			case Ion.BYTE_ARRAY:
+				writeBytes((byte[]) obj);
+				return;
+				
+			case Ion.CHAR_ARRAY:
+				writeChars((char[]) obj);
+				return;
+				
+			case Ion.SHORT_ARRAY:
+				writeShorts((short[]) obj);
+				return;
+				
+			case Ion.INT_ARRAY:
+				writeInts((int[]) obj);
+				return;
+				
+			case Ion.LONG_ARRAY:
+				writeLongs((long[]) obj);
+				return;
+				
+			case Ion.FLOAT_ARRAY:
+				writeFloats((float[]) obj);
+				return;
+				
+			case Ion.DOUBLE_ARRAY:
+				writeDoubles((double[]) obj);
+				return;
+				
+			case Ion.STRING_ARRAY:
+				writeStrings((String[]) obj);
+				return;
+				
+			case Ion.OBJECT_ARRAY:
+				writeObjects((Object[]) obj);
+				return;
+				
+			default:
+				throw new IOException("Object " + obj + " could not be be written to stream.");
 		}
-		
-		if (obj instanceof Object[]) {
-			writeMark(Ion.OBJECT_ARRAY);
-			writeObjects((Object[]) obj);
-			return;
+	}
+	
+	
+	/**
+	 * Write out buffered data, if any
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if (buffered != null) {
+			buffered.flush();
+		} else {
+			((OutputStream) stream).flush();
 		}
-		
-		throw new IOException("Object " + obj + " could not be be written to stream.");
 	}
 	
 	
@@ -0,0 +1,72 @@
+package mightypork.utils.ion;
+
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import mightypork.utils.exceptions.CorruptDataException;
+
+
+/**
+ * Cursor reading elements of a sequence one by one from an {@link IonInput},
+ * without building the whole collection in memory.<br>
+ * The input must not be used for anything else until the cursor reaches the
+ * end of the sequence.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ * @param <T> element type
+ */
+public class IonSequenceCursor<T> {
+	
+	private final IonInput in;
+	
+	/** Whether the next ENTRY / END mark was read */
+	private boolean markRead;
+	private boolean hasNext;
+	
+	
+	IonSequenceCursor(IonInput in)
+	{
+		this.in = in;
+	}
+	
+	
+	/**
+	 * Check if there's another element. When this returns false, the whole
+	 * sequence has been read.
+	 *
+	 * @return true if there's another element
+	 * @throws IOException
+	 */
+	public boolean hasNext() throws IOException
+	{
+		if (!markRead) {
+			hasNext = in.hasNextEntry();
+			markRead = true;
+		}
+		
+		return hasNext;
+	}
+	
+	
+	/**
+	 * Read the next element
+	 *
+	 * @return the element
+	 * @throws IOException
+	 * @throws NoSuchElementException if there are no more elements
+	 */
+	@SuppressWarnings("unchecked")
+	public T next() throws IOException
+	{
+		if (!hasNext()) throw new NoSuchElementException();
+		
+		markRead = false;
+		
+		try {
+			return (T) in.readObject();
+		} catch (final ClassCastException e) {
+			throw new CorruptDataException("Unexpected element type in sequence.", e);
+		}
+	}
+}
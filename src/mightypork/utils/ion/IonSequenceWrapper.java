@@ -2,8 +2,12 @@ package mightypork.utils.ion;
 
 
 import java.io.IOException;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+
+import mightypork.utils.exceptions.CorruptDataException;
 
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -11,6 +15,13 @@ class IonSequenceWrapper implements IonBinary {
 	
 	private Collection collection = new ArrayList();
 	
+	/** The collection is held by the caller too, so changes can't be tracked */
+	private boolean external;
+	/** Some elements may be modified by the caller, and are not bundles */
+	private boolean untracked;
+	/** Changed since last marked clean, apart from changes in element bundles */
+	private boolean changed = true;
+	
 	
 	public IonSequenceWrapper()
 	{
@@ -21,6 +32,7 @@ class IonSequenceWrapper implements IonBinary {
 	public IonSequenceWrapper(Collection saved)
 	{
 		collection = saved;
+		external = true;
 	}
 	
 	
@@ -29,6 +41,7 @@ class IonSequenceWrapper implements IonBinary {
 	{
 		collection.clear();
 		in.readSequence(collection);
+		changed = false;
 	}
 	
 	
@@ -43,12 +56,194 @@ class IonSequenceWrapper implements IonBinary {
 	{
 		o.clear();
 		o.addAll(collection);
+		
+		// the elements can be modified through the copy
+		checkTracked();
 	}
 	
 	
+	/**
+	 * Check if the elements handed out can be tracked; if not, the sequence
+	 * is treated as changed from now on.
+	 */
+	private void checkTracked()
+	{
+		if (untracked || allTracked(collection)) return;
+		
+		untracked = true;
+		changed = true;
+	}
+	
+	
+	/**
+	 * @return true if changes of the value can be tracked - it's immutable
+	 *         (null, string or a boxed primitive), or a bundle
+	 */
+	static boolean isTracked(Object value)
+	{
+		if (value == null || value instanceof IonDataBundle) return true;
+		
+		final Class<?> c = value.getClass();
+		return c == String.class || c == Integer.class || c == Long.class || c == Double.class || c == Float.class || c == Boolean.class || c == Short.class || c == Byte.class || c == Character.class;
+	}
+	
+	
+	static boolean allTracked(Collection values)
+	{
+		for (final Object value : values) {
+			if (!isTracked(value)) return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * @return view of the collection, tracking changes made through it
+	 */
 	public Collection getSequence()
 	{
-		return collection;
+		checkTracked();
+		
+		return new AbstractCollection() {
+			
+			@Override
+			public Iterator iterator()
+			{
+				final Iterator iterator = collection.iterator();
+				
+				return new Iterator() {
+					
+					@Override
+					public boolean hasNext()
+					{
+						return iterator.hasNext();
+					}
+					
+					
+					@Override
+					public Object next()
+					{
+						return iterator.next();
+					}
+					
+					
+					@Override
+					public void remove()
+					{
+						iterator.remove();
+						changed = true;
+					}
+				};
+			}
+			
+			
+			@Override
+			public int size()
+			{
+				return collection.size();
+			}
+			
+			
+			@Override
+			public boolean add(Object e)
+			{
+				if (!collection.add(e)) return false;
+				
+				changed = true;
+				if (!isTracked(e)) untracked = true;
+				return true;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Check if the contents may have changed since last marked clean,
+	 * including changes in element bundles.
+	 *
+	 * @return true if possibly changed
+	 */
+	public boolean isDirty()
+	{
+		if (changed) return true;
+		
+		for (final Object element : collection) {
+			if (element instanceof IonDataBundle && ((IonDataBundle) element).isDirty()) return true;
+		}
+		
+		return false;
+	}
+	
+	
+	/**
+	 * Check if the sequence must be written whole - it was changed (not only
+	 * its element bundles), or its changes can't be tracked.
+	 *
+	 * @return true if changed
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+	
+	
+	public void markClean()
+	{
+		changed = external || untracked;
+		
+		for (final Object element : collection) {
+			if (element instanceof IonDataBundle) ((IonDataBundle) element).markClean();
+		}
+	}
+	
+	
+	/**
+	 * Write deltas of changed element bundles, by index
+	 *
+	 * @param out output
+	 * @throws IOException
+	 */
+	public void writeDelta(IonOutput out) throws IOException
+	{
+		int index = 0;
+		for (final Object element : collection) {
+			if (element instanceof IonDataBundle && ((IonDataBundle) element).isDirty()) {
+				out.startEntry();
+				out.writeVarInt(index);
+				((IonDataBundle) element).writeDelta(out);
+			}
+			index++;
+		}
+		
+		out.endSequence();
+	}
+	
+	
+	/**
+	 * Apply deltas written by <code>writeDelta()</code> to the element bundles
+	 *
+	 * @param in input
+	 * @throws IOException
+	 */
+	public void applyDelta(IonInput in) throws IOException
+	{
+		final Iterator iterator = collection.iterator();
+		int index = -1;
+		
+		while (in.hasNextEntry()) {
+			final int target = in.readVarInt();
+			if (target <= index) throw new CorruptDataException("Invalid sequence delta index: " + target);
+			
+			Object element = null;
+			while (index < target) {
+				if (!iterator.hasNext()) throw new CorruptDataException("Sequence delta index out of range: " + target);
+				element = iterator.next();
+				index++;
+			}
+			
+			if (!(element instanceof IonDataBundle)) throw new CorruptDataException("Sequence delta for an element which is not a bundle: " + target);
+			((IonDataBundle) element).applyDelta(in);
+		}
 	}
 	
 }
@@ -0,0 +1,25 @@
+package mightypork.utils.ion;
+
+
+/**
+ * Binary ion object that knows the size of its data without saving it. Used by
+ * {@link Ion#sizeOf(Object)} and {@link Ion#toBytes(Object)} to skip encoding
+ * the object just to measure it.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public interface IonSized extends IonBinary {
+	
+	/**
+	 * Get the exact number of bytes written by <code>save()</code>.<br>
+	 * The size may depend on the format: with {@link Ion#FORMAT_COMPACT},
+	 * <code>writeShort()</code>, <code>writeInt()</code> and
+	 * <code>writeLong()</code> write zigzag varints. If it depends on the
+	 * stream state (ie. strings with {@link Ion#FORMAT_STRING_TABLE}, or
+	 * nested objects), return -1 and the object is encoded to be measured.
+	 *
+	 * @param format format flags of the output (Ion.FORMAT_*)
+	 * @return size in bytes, or -1 if not known
+	 */
+	int getIonSize(int format);
+}
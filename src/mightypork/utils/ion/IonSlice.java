@@ -0,0 +1,47 @@
+package mightypork.utils.ion;
+
+
+import java.io.IOException;
+
+
+/**
+ * Encoded value held by a lazily loaded bundle, decoded on first access.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+final class IonSlice {
+	
+	/** The encoded object, including its mark */
+	final byte[] data;
+	
+	/** Format flags the object is encoded with */
+	final int format;
+	
+	/** Registry of the types to load */
+	final IonTypes types;
+	
+	
+	public IonSlice(byte[] data, int format, IonTypes types)
+	{
+		this.data = data;
+		this.format = format;
+		this.types = types;
+	}
+	
+	
+	/**
+	 * Decode the value. Bundles in the value are loaded lazily as well.
+	 *
+	 * @return the value
+	 * @throws IOException
+	 */
+	public Object decode() throws IOException
+	{
+		try(final IonInput in = new IonInput(new WrappedBufferInput(data, 0, data.length))) {
+			in.setFormat(format);
+			in.setTypes(types);
+			in.setLazyBundles(true);
+			return in.readObject();
+		}
+	}
+}
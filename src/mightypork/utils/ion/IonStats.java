@@ -0,0 +1,216 @@
+package mightypork.utils.ion;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import mightypork.utils.Str;
+import mightypork.utils.logging.Log;
+
+
+/**
+ * Per-type statistics of encoded or decoded objects - count, bytes and time,
+ * by mark. Given to an input or output using <code>setStats()</code> (or to
+ * all new streams using {@link Ion#setStats(IonStats)}); streams without
+ * statistics don't measure anything.<br>
+ * <br>
+ * Bytes and time of an object include the nested objects, "self" values
+ * exclude them. Bytes are counted before compression. Values of primitive
+ * bundle entries are counted to the bundle itself, and references to the
+ * referencing object. Elements of arrays and sequences encoded in parallel
+ * are timed on the worker threads, so time of the array includes waiting for
+ * them.<br>
+ * <br>
+ * The statistics can be shared by streams in multiple threads.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public final class IonStats {
+	
+	private static final int MARKS = IonTypes.RANGE_HIGH + 1;
+	
+	private final Class<?>[] types = new Class<?>[MARKS];
+	private final long[] counts = new long[MARKS];
+	private final long[] bytes = new long[MARKS];
+	private final long[] selfBytes = new long[MARKS];
+	private final long[] nanos = new long[MARKS];
+	private final long[] selfNanos = new long[MARKS];
+	
+	
+	/**
+	 * Statistics of one type
+	 */
+	public static final class Entry {
+		
+		private final int mark;
+		private final Class<?> type;
+		private final long count;
+		private final long bytes;
+		private final long selfBytes;
+		private final long nanos;
+		private final long selfNanos;
+		
+		
+		private Entry(int mark, Class<?> type, long count, long bytes, long selfBytes, long nanos, long selfNanos)
+		{
+			this.mark = mark;
+			this.type = type;
+			this.count = count;
+			this.bytes = bytes;
+			this.selfBytes = selfBytes;
+			this.nanos = nanos;
+			this.selfNanos = selfNanos;
+		}
+		
+		
+		public int getMark()
+		{
+			return mark;
+		}
+		
+		
+		/**
+		 * @return the type's class (for built-ins, ie. Map or Collection)
+		 */
+		public Class<?> getType()
+		{
+			return type;
+		}
+		
+		
+		/**
+		 * @return short name of the type
+		 */
+		public String getName()
+		{
+			return type.isArray() ? type.getSimpleName() : Str.val(type);
+		}
+		
+		
+		public long getCount()
+		{
+			return count;
+		}
+		
+		
+		/**
+		 * @return bytes of the objects, including nested objects
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+		
+		
+		/**
+		 * @return bytes of the objects, excluding nested objects
+		 */
+		public long getSelfBytes()
+		{
+			return selfBytes;
+		}
+		
+		
+		/**
+		 * @return time spent with the objects, including nested objects
+		 */
+		public long getNanos()
+		{
+			return nanos;
+		}
+		
+		
+		/**
+		 * @return time spent with the objects, excluding nested objects
+		 */
+		public long getSelfNanos()
+		{
+			return selfNanos;
+		}
+		
+		
+		@Override
+		public String toString()
+		{
+			return String.format("%3d %-32s %10d %12d %12d %10.3f %10.3f", mark, getName(), count, bytes, selfBytes, nanos / 1e6, selfNanos / 1e6);
+		}
+	}
+	
+	
+	synchronized void add(int mark, Class<?> type, long bytes, long selfBytes, long nanos, long selfNanos)
+	{
+		this.types[mark] = type;
+		this.counts[mark]++;
+		this.bytes[mark] += bytes;
+		this.selfBytes[mark] += selfBytes;
+		this.nanos[mark] += nanos;
+		this.selfNanos[mark] += selfNanos;
+	}
+	
+	
+	/**
+	 * Get entries of types recorded so far, the most expensive (by self time)
+	 * first.
+	 *
+	 * @return the entries; not affected by further recording
+	 */
+	public synchronized List<Entry> snapshot()
+	{
+		final List<Entry> entries = new ArrayList<>();
+		for (int mark = 0; mark < MARKS; mark++) {
+			if (counts[mark] == 0) continue;
+			
+			entries.add(new Entry(mark, types[mark], counts[mark], bytes[mark], selfBytes[mark], nanos[mark], selfNanos[mark]));
+		}
+		
+		Collections.sort(entries, new Comparator<Entry>() {
+			
+			@Override
+			public int compare(Entry a, Entry b)
+			{
+				return Long.compare(b.selfNanos, a.selfNanos);
+			}
+		});
+		
+		return entries;
+	}
+	
+	
+	/**
+	 * Clear the recorded statistics
+	 */
+	public synchronized void reset()
+	{
+		for (int mark = 0; mark < MARKS; mark++) {
+			types[mark] = null;
+			counts[mark] = 0;
+			bytes[mark] = 0;
+			selfBytes[mark] = 0;
+			nanos[mark] = 0;
+			selfNanos[mark] = 0;
+		}
+	}
+	
+	
+	/**
+	 * Write the statistics to the log
+	 */
+	public void log()
+	{
+		Log.i(toString());
+	}
+	
+	
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder("ION statistics:\n");
+		sb.append(String.format("%3s %-32s %10s %12s %12s %10s %10s", "#", "type", "count", "bytes", "self bytes", "ms", "self ms"));
+		for (final Entry entry : snapshot()) {
+			sb.append('\n').append(entry);
+		}
+		return sb.toString();
+	}
+}
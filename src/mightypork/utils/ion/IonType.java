@@ -0,0 +1,189 @@
+package mightypork.utils.ion;
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import mightypork.utils.Str;
+
+
+/**
+ * Registry entry of a type known to ION - the mark, how it's saved, and what
+ * is needed to load it.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+final class IonType {
+	
+	/** Built-in type, handled directly by IonInput / IonOutput */
+	static final int BUILTIN = 0;
+	/** {@link IonBinary} */
+	static final int BINARY = 1;
+	/** {@link IonBundled} */
+	static final int BUNDLED = 2;
+	/** Saved using an {@link IonizerBinary} */
+	static final int INDIRECT_BINARY = 3;
+	/** Saved using an {@link IonizerBundled} */
+	static final int INDIRECT_BUNDLED = 4;
+	
+	final int mark;
+	final int kind;
+	final Class<?> type;
+	
+	/** Instance factory for directly saved types */
+	final IonFactory<?> factory;
+	
+	final IonizerBinary<?> ionizerBinary;
+	final IonizerBundled<?> ionizerBundled;
+	
+	
+	private IonType(int mark, int kind, Class<?> type, IonFactory<?> factory, IonizerBinary<?> ionizerBinary, IonizerBundled<?> ionizerBundled)
+	{
+		this.mark = mark;
+		this.kind = kind;
+		this.type = type;
+		this.factory = factory;
+		this.ionizerBinary = ionizerBinary;
+		this.ionizerBundled = ionizerBundled;
+	}
+	
+	
+	/**
+	 * Entry for a built-in type
+	 */
+	static IonType builtin(int mark, Class<?> type)
+	{
+		return new IonType(mark, BUILTIN, type, null, null, null);
+	}
+	
+	
+	/**
+	 * Entry for a directly saved type. Binary is preferred if the type
+	 * implements both interfaces.
+	 *
+	 * @param factory instance factory; if null, the implicit constructor is
+	 *            used.
+	 */
+	static IonType direct(int mark, Class<?> type, IonFactory<?> factory)
+	{
+		final int kind;
+		if (IonBinary.class.isAssignableFrom(type)) {
+			kind = BINARY;
+		} else if (IonBundled.class.isAssignableFrom(type)) {
+			kind = BUNDLED;
+		} else {
+			throw new IllegalArgumentException("Cannot register directly: " + Str.val(type));
+		}
+		
+		return new IonType(mark, kind, type, factory != null ? factory : constructorFactory(type), null, null);
+	}
+	
+	
+	/**
+	 * Entry for a type saved using a binary ionizer
+	 */
+	static IonType indirect(int mark, Class<?> type, IonizerBinary<?> ionizer)
+	{
+		return new IonType(mark, INDIRECT_BINARY, type, null, ionizer, null);
+	}
+	
+	
+	/**
+	 * Entry for a type saved using a bundled ionizer
+	 */
+	static IonType indirect(int mark, Class<?> type, IonizerBundled<?> ionizer)
+	{
+		return new IonType(mark, INDIRECT_BUNDLED, type, null, null, ionizer);
+	}
+	
+	
+	/**
+	 * Create a new instance of a directly saved type
+	 *
+	 * @return the instance
+	 */
+	Object newInstance()
+	{
+		return factory.create();
+	}
+	
+	
+	/**
+	 * Get a factory calling the implicit constructor of a type. A method handle
+	 * is used if accessible, so there's no reflective access check on each
+	 * call.
+	 *
+	 * @param type the type
+	 * @return factory
+	 */
+	static IonFactory<?> constructorFactory(Class<?> type)
+	{
+		try {
+			final MethodHandle handle = MethodHandles.lookup().findConstructor(type, MethodType.methodType(void.class));
+			return new HandleFactory(handle.asType(MethodType.methodType(Object.class)));
+		} catch (final IllegalAccessException e) {
+			// not accessible from here, fall back to reflection
+		} catch (final NoSuchMethodException e) {
+			throw new IllegalArgumentException("Class " + Str.val(type) + " doesn't have an implicit constructor.");
+		}
+		
+		try {
+			final Constructor<?> constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return new ReflectFactory(constructor);
+		} catch (NoSuchMethodException | SecurityException e) {
+			throw new IllegalArgumentException("Class " + Str.val(type) + " doesn't have an accessible implicit constructor.", e);
+		}
+	}
+	
+	
+	private static class HandleFactory implements IonFactory<Object> {
+		
+		private final MethodHandle constructor;
+		
+		
+		public HandleFactory(MethodHandle constructor)
+		{
+			this.constructor = constructor;
+		}
+		
+		
+		@Override
+		public Object create()
+		{
+			try {
+				return (Object) constructor.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (final Throwable t) {
+				throw new RuntimeException("Could not create instance.", t);
+			}
+		}
+	}
+	
+	
+	private static class ReflectFactory implements IonFactory<Object> {
+		
+		private final Constructor<?> constructor;
+		
+		
+		public ReflectFactory(Constructor<?> constructor)
+		{
+			this.constructor = constructor;
+		}
+		
+		
+		@Override
+		public Object create()
+		{
+			try {
+				return constructor.newInstance();
+			} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException("Could not instantiate " + Str.val(constructor.getDeclaringClass()) + ".", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package mightypork.utils.ion;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import mightypork.utils.Reflect;
+import mightypork.utils.Str;
+
+
+/**
+ * Registry of types known to ION ("type context"). The static registry used by
+ * default is in {@link Ion}; an input or output can be given its own registry
+ * using <code>setTypes()</code>, so independent subsystems can use different
+ * mark sets in parallel.<br>
+ * Lookups are lock-free: the registry is an immutable snapshot, replaced as a
+ * whole when a type is registered. Registering is thread-safe, but slow - it's
+ * meant to be done at startup.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public final class IonTypes {
+	
+	static final int RESERVED_LOW = 0;
+	static final int RESERVED_HIGH = 49;
+	
+	static final int RANGE_LOW = 0;
+	static final int RANGE_HIGH = 255;
+	
+	/** Built-in types with an exact class */
+	private static final Map<Class<?>, IonType> builtinTypes = new HashMap<>();
+	/** Built-in types by mark */
+	private static final IonType[] builtinMarks = new IonType[RESERVED_HIGH + 1];
+	private static final IonType MAP_TYPE = IonType.builtin(Ion.MAP, Map.class);
+	private static final IonType SEQUENCE_TYPE = IonType.builtin(Ion.SEQUENCE, Collection.class);
+	private static final IonType OBJECT_ARRAY_TYPE = IonType.builtin(Ion.OBJECT_ARRAY, Object[].class);
+	
+	static {
+		addBuiltin(Ion.BOOLEAN, Boolean.class);
+		addBuiltin(Ion.BYTE, Byte.class);
+		addBuiltin(Ion.CHAR, Character.class);
+		addBuiltin(Ion.SHORT, Short.class);
+		addBuiltin(Ion.INT, Integer.class);
+		addBuiltin(Ion.LONG, Long.class);
+		addBuiltin(Ion.FLOAT, Float.class);
+		addBuiltin(Ion.DOUBLE, Double.class);
+		addBuiltin(Ion.STRING, String.class);
+		addBuiltin(Ion.BOOLEAN_ARRAY, boolean[].class);
+		addBuiltin(Ion.BYTE_ARRAY, byte[].class);
+		addBuiltin(Ion.CHAR_ARRAY, char[].class);
+		addBuiltin(Ion.SHORT_ARRAY, short[].class);
+		addBuiltin(Ion.INT_ARRAY, int[].class);
+		addBuiltin(Ion.LONG_ARRAY, long[].class);
+		addBuiltin(Ion.FLOAT_ARRAY, float[].class);
+		addBuiltin(Ion.DOUBLE_ARRAY, double[].class);
+		addBuiltin(Ion.STRING_ARRAY, String[].class);
+		
+		builtinMarks[Ion.MAP] = MAP_TYPE;
+		builtinMarks[Ion.SEQUENCE] = SEQUENCE_TYPE;
+		builtinMarks[Ion.OBJECT_ARRAY] = OBJECT_ARRAY_TYPE;
+	}
+	
+	
+	private static void addBuiltin(int mark, Class<?> objClass)
+	{
+		final IonType type = IonType.builtin(mark, objClass);
+		builtinTypes.put(objClass, type);
+		builtinMarks[mark] = type;
+	}
+	
+	
+	/**
+	 * Immutable state of the registry
+	 */
+	private static final class Snapshot {
+		
+		/** Registered types by mark (decoding dispatch table) */
+		final IonType[] markToType;
+		/** Registered types by class */
+		final Map<Class<?>, IonType> classToType;
+		/** Cached type lookup for encoding */
+		final ClassValue<IonType> typeLookup = new TypeLookup(this);
+		
+		
+		public Snapshot(IonType[] markToType, Map<Class<?>, IonType> classToType)
+		{
+			this.markToType = markToType;
+			this.classToType = classToType;
+		}
+	}
+	
+	
+	/**
+	 * Finds the type entry to use for a class. Computed once per class.
+	 */
+	private static class TypeLookup extends ClassValue<IonType> {
+		
+		private final Snapshot snapshot;
+		
+		
+		public TypeLookup(Snapshot snapshot)
+		{
+			this.snapshot = snapshot;
+		}
+		
+		
+		@Override
+		protected IonType computeValue(Class<?> clazz)
+		{
+			final IonType registered = snapshot.classToType.get(clazz);
+			if (registered != null) return registered;
+			
+			final IonType builtin = builtinTypes.get(clazz);
+			if (builtin != null) return builtin;
+			
+			if (Map.class.isAssignableFrom(clazz)) return MAP_TYPE;
+			if (Collection.class.isAssignableFrom(clazz)) return SEQUENCE_TYPE;
+			if (Object[].class.isAssignableFrom(clazz)) return OBJECT_ARRAY_TYPE;
+			
+			return null;
+		}
+	}
+	
+	private volatile Snapshot snapshot;
+	
+	
+	/**
+	 * Create a registry with only the built-in types.
+	 */
+	public IonTypes()
+	{
+		snapshot = new Snapshot(new IonType[RANGE_HIGH + 1], new HashMap<Class<?>, IonType>());
+		
+		// reserved marks, registered without the check
+		addType(IonType.direct(Ion.ION_BUNDLE, IonDataBundle.class, null), false);
+		addType(IonType.direct(Ion.SEQUENCE_WRAPPER, IonSequenceWrapper.class, null), false);
+		addType(IonType.direct(Ion.MAP_WRAPPER, IonMapWrapper.class, null), false);
+	}
+	
+	
+	/**
+	 * Create a registry with the same types as another one. Types registered
+	 * later to either of them are not shared.
+	 *
+	 * @param copied copied registry
+	 */
+	public IonTypes(IonTypes copied)
+	{
+		snapshot = copied.snapshot; // immutable
+	}
+	
+	
+	/**
+	 * Register a type for writing/loading.
+	 *
+	 * @param mark binary ION mark
+	 * @param objClass class of the registered object
+	 */
+	public void register(int mark, Class<?> objClass)
+	{
+		assertCanRegisterDirectly(objClass);
+		
+		addType(IonType.direct(mark, objClass, null), true);
+	}
+	
+	
+	/**
+	 * Register a type for writing/loading, with a factory used to create
+	 * instances when loading. The type does not need an implicit constructor.
+	 *
+	 * @param mark binary ION mark
+	 * @param objClass class of the registered object
+	 * @param factory instance factory
+	 */
+	public <T> void register(int mark, Class<T> objClass, IonFactory<? extends T> factory)
+	{
+		if (factory == null) throw new NullPointerException("Factory must not be null.");
+		
+		addType(IonType.direct(mark, objClass, factory), true);
+	}
+	
+	
+	/**
+	 * Register a type using a static final ION_MARK int field.
+	 *
+	 * @param objClass type class
+	 */
+	public void register(Class<?> objClass)
+	{
+		assertCanRegisterDirectly(objClass);
+		registerUsingConstant(objClass);
+	}
+	
+	
+	/**
+	 * Register a type using a static final ION_MARK int field, without
+	 * checking the class.
+	 *
+	 * @param objClass type class
+	 */
+	public void registerUsingConstant(Class<?> objClass)
+	{
+		final int mark;
+		try {
+			mark = ((Number) Reflect.getConstantFieldValue(objClass, "ION_MARK")).intValue();
+		} catch (final Exception e) {
+			throw new RuntimeException("Could not register " + Str.val(objClass) + " using an ION_MARK field.", e);
+		}
+		
+		addType(IonType.direct(mark, objClass, null), true);
+	}
+	
+	
+	/**
+	 * Register new binary ionizer.
+	 *
+	 * @param mark binary ION mark
+	 * @param ionizer ionizer
+	 */
+	public void registerIndirect(int mark, IonizerBinary<?> ionizer)
+	{
+		final Class<?> objClass = Reflect.getGenericParameters(ionizer.getClass())[0];
+		
+		addType(IonType.indirect(mark, objClass, ionizer), true);
+	}
+	
+	
+	/**
+	 * Register new bundled ionizer.
+	 *
+	 * @param mark binary ION mark
+	 * @param ionizer ionizer
+	 */
+	public void registerIndirect(int mark, IonizerBundled<?> ionizer)
+	{
+		final Class<?> objClass = Reflect.getGenericParameters(ionizer.getClass())[0];
+		
+		addType(IonType.indirect(mark, objClass, ionizer), true);
+	}
+	
+	
+	/**
+	 * Forget all registered types, except the built-ins.
+	 */
+	public synchronized void reset()
+	{
+		final IonType[] markToType = new IonType[RANGE_HIGH + 1];
+		final Map<Class<?>, IonType> classToType = new HashMap<>();
+		
+		for (int mark = RESERVED_LOW; mark <= RESERVED_HIGH; mark++) {
+			final IonType type = snapshot.markToType[mark];
+			if (type == null) continue;
+			
+			markToType[mark] = type;
+			classToType.put(type.type, type);
+		}
+		
+		snapshot = new Snapshot(markToType, classToType);
+	}
+	
+	
+	private static void assertCanRegisterDirectly(Class<?> objClass)
+	{
+		if (!IonBinary.class.isAssignableFrom(objClass)) {
+			if (!IonBundled.class.isAssignableFrom(objClass)) {
+				throw new IllegalArgumentException("Cannot register directly: " + Str.val(objClass));
+			}
+		}
+		
+		try {
+			objClass.getConstructor();
+		} catch (NoSuchMethodException | SecurityException e) {
+			throw new RuntimeException("Class " + objClass + " doesn't have an implicit constructor.");
+		}
+	}
+	
+	
+	/**
+	 * Add a type, publishing a new snapshot
+	 *
+	 * @param type added type
+	 * @param checkReserved reject reserved marks
+	 */
+	private synchronized void addType(IonType type, boolean checkReserved)
+	{
+		final Snapshot old = snapshot;
+		final int mark = type.mark;
+		
+		if (mark > RANGE_HIGH) throw new IllegalArgumentException("Mark must be < 256.");
+		if (mark < RANGE_LOW) throw new IllegalArgumentException("Mark must be positive.");
+		
+		if (checkReserved && isMarkReserved(mark)) {
+			throw new IllegalArgumentException("Marks " + RESERVED_LOW + ".." + RESERVED_HIGH + " are reserved.");
+		}
+		
+		if (old.markToType[mark] != null) {
+			throw new IllegalArgumentException("Mark " + mark + " is already in use.");
+		}
+		
+		if (old.classToType.containsKey(type.type)) {
+			throw new IllegalArgumentException(Str.val(type.type) + " is already registered.");
+		}
+		
+		final IonType[] markToType = old.markToType.clone();
+		markToType[mark] = type;
+		
+		final Map<Class<?>, IonType> classToType = new HashMap<>(old.classToType);
+		classToType.put(type.type, type);
+		
+		snapshot = new Snapshot(markToType, classToType);
+	}
+	
+	
+	/**
+	 * @return true if the mark is reserved for internal use
+	 */
+	static boolean isMarkReserved(int mark)
+	{
+		return mark >= RESERVED_LOW && mark <= RESERVED_HIGH;
+	}
+	
+	
+	/**
+	 * Get a registered type for mark
+	 *
+	 * @param mark mark 0..255
+	 * @return the type, or null if no type is registered for the mark
+	 */
+	IonType getType(int mark)
+	{
+		return snapshot.markToType[mark];
+	}
+	
+	
+	/**
+	 * Get a built-in type for mark
+	 *
+	 * @param mark mark 0..255
+	 * @return the type, or null if the mark is not of a built-in type
+	 */
+	static IonType getBuiltinType(int mark)
+	{
+		return mark <= RESERVED_HIGH ? builtinMarks[mark] : null;
+	}
+	
+	
+	/**
+	 * Get a type entry to use for writing objects of a class
+	 *
+	 * @param clazz object class
+	 * @return the type (registered or built-in), or null if not supported
+	 */
+	IonType getType(Class<?> clazz)
+	{
+		return snapshot.typeLookup.get(clazz);
+	}
+	
+	
+	/**
+	 * Get a registered (not built-in) type of a class
+	 *
+	 * @param clazz class
+	 * @return the type, or null if not registered
+	 */
+	IonType getRegisteredType(Class<?> clazz)
+	{
+		return snapshot.classToType.get(clazz);
+	}
+	
+	
+	/**
+	 * Check if objects of a class are registered (not built-in)
+	 *
+	 * @param clazz class
+	 * @return true if registered
+	 */
+	public boolean isRegistered(Class<?> clazz)
+	{
+		final IonType type = getType(clazz);
+		
+		return type != null && type.kind != IonType.BUILTIN;
+	}
+}
@@ -0,0 +1,66 @@
+package mightypork.utils.ion;
+
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+
+/**
+ * Data input reading a file through memory-mapped windows. Data is decoded
+ * straight from the mapped pages, without copying it through an intermediate
+ * buffer.<br>
+ * Files larger than the window size (and larger than 2 GB) are mapped
+ * piecewise - when a window is drained, the next one is mapped starting at the
+ * current read position.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class MappedBufferInput extends ByteBufferInput {
+	
+	/** Default size of a mapped window */
+	static final long DEFAULT_WINDOW = 256L * 1024 * 1024;
+	
+	private final FileChannel channel;
+	private final long windowSize;
+	private final long fileSize;
+	
+	/** File position of the current window */
+	private long windowStart;
+	
+	
+	public MappedBufferInput(FileChannel channel, long windowSize) throws IOException
+	{
+		if (windowSize < 4096 || windowSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Window size must be 4 kB .. 2 GB.");
+		}
+		
+		this.channel = channel;
+		this.windowSize = windowSize;
+		this.fileSize = channel.size();
+		
+		windowStart = 0;
+		buffer = channel.map(MapMode.READ_ONLY, 0, Math.min(windowSize, fileSize));
+	}
+	
+	
+	@Override
+	protected boolean refill() throws IOException
+	{
+		final long pos = windowStart + buffer.position();
+		
+		// nothing left to map
+		if (pos + buffer.remaining() >= fileSize) return false;
+		
+		windowStart = pos;
+		buffer = channel.map(MapMode.READ_ONLY, pos, Math.min(windowSize, fileSize - pos));
+		return true;
+	}
+	
+	
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
@@ -0,0 +1,148 @@
+package mightypork.utils.ion;
+
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Data output collecting bytes in a heap buffer, which grows as needed.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class MemoryBufferOutput extends ByteBufferOutput {
+	
+	/** Buffer taken from the buffer pool, null if not pooled or returned */
+	private ByteBuffer pooled;
+	
+	/** Throw instead of growing */
+	private final boolean bounded;
+	
+	
+	public MemoryBufferOutput(int initialCapacity)
+	{
+		this(initialCapacity, false);
+	}
+	
+	
+	/**
+	 * @param array array to write to; a new one is allocated if it's too small
+	 */
+	public MemoryBufferOutput(byte[] array)
+	{
+		buffer = ByteBuffer.wrap(array);
+		bounded = false;
+	}
+	
+	
+	/**
+	 * @param initialCapacity initial capacity
+	 * @param pooled take the buffer from the buffer pool; it must be returned
+	 *            using <code>release()</code>.
+	 */
+	public MemoryBufferOutput(int initialCapacity, boolean pooled)
+	{
+		this(initialCapacity, pooled, false);
+	}
+	
+	
+	/**
+	 * @param initialCapacity initial capacity
+	 * @param pooled take the buffer from the buffer pool; it must be returned
+	 *            using <code>release()</code>.
+	 * @param bounded throw a {@link BufferOverflowException} when the buffer
+	 *            is full, instead of growing it
+	 */
+	public MemoryBufferOutput(int initialCapacity, boolean pooled, boolean bounded)
+	{
+		buffer = pooled ? BufferPool.obtain(initialCapacity, false) : ByteBuffer.allocate(Math.max(initialCapacity, 16));
+		if (pooled) this.pooled = buffer;
+		this.bounded = bounded;
+	}
+	
+	
+	@Override
+	protected void drain(int count)
+	{
+		if (bounded) throw new BufferOverflowException();
+		
+		final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + count);
+		
+		final ByteBuffer grown = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		
+		// only the original buffer goes back to the pool, grown ones are dropped
+		if (buffer == pooled) {
+			BufferPool.release(pooled);
+			pooled = null;
+		}
+		
+		buffer = grown;
+	}
+	
+	
+	/**
+	 * @return number of bytes written
+	 */
+	public int size()
+	{
+		return buffer.position();
+	}
+	
+	
+	/**
+	 * @return the backing array; valid data is in the first size() bytes
+	 */
+	public byte[] array()
+	{
+		return buffer.array();
+	}
+	
+	
+	/**
+	 * Copy the written bytes to another output
+	 *
+	 * @param out target output
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.write(buffer.array(), 0, buffer.position());
+	}
+	
+	
+	/**
+	 * Discard all written bytes, keeping the buffer
+	 */
+	public void reset()
+	{
+		buffer.clear();
+	}
+	
+	
+	/**
+	 * Return a pooled buffer to the pool. The output must not be used
+	 * afterwards.
+	 */
+	public void release()
+	{
+		if (pooled != null) BufferPool.release(pooled);
+		pooled = null;
+		buffer = null;
+	}
+	
+	
+	@Override
+	public void flush()
+	{
+	}
+	
+	
+	@Override
+	public void close()
+	{
+	}
+}
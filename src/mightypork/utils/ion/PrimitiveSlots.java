@@ -0,0 +1,356 @@
+package mightypork.utils.ion;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Open-addressing map from String keys to unboxed primitive values. Each slot
+ * holds a type tag (ION mark of the primitive type) and the value bits in a
+ * long.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+final class PrimitiveSlots {
+	
+	private static final int INITIAL_CAPACITY = 8;
+	
+	private String[] keys;
+	private byte[] tags;
+	private long[] values;
+	private int size;
+	
+	
+	/**
+	 * @return true if the mark is of a primitive type storable here
+	 */
+	static boolean isPrimitive(int mark)
+	{
+		return mark >= Ion.BOOLEAN && mark <= Ion.DOUBLE;
+	}
+	
+	
+	/**
+	 * Get the value bits of a boxed primitive
+	 *
+	 * @param mark primitive mark
+	 * @param boxed boxed value
+	 * @return bits
+	 */
+	static long toBits(int mark, Object boxed)
+	{
+		switch (mark) {
+			case Ion.BOOLEAN:
+				return ((Boolean) boxed) ? 1 : 0;
+				
+			case Ion.CHAR:
+				return (Character) boxed;
+				
+			case Ion.FLOAT:
+				return Float.floatToRawIntBits((Float) boxed);
+				
+			case Ion.DOUBLE:
+				return Double.doubleToRawLongBits((Double) boxed);
+				
+			default:
+				return ((Number) boxed).longValue();
+		}
+	}
+	
+	
+	/**
+	 * Box a value
+	 *
+	 * @param mark primitive mark
+	 * @param bits value bits
+	 * @return boxed value
+	 */
+	static Object box(int mark, long bits)
+	{
+		switch (mark) {
+			case Ion.BOOLEAN:
+				return bits != 0;
+				
+			case Ion.BYTE:
+				return (byte) bits;
+				
+			case Ion.CHAR:
+				return (char) bits;
+				
+			case Ion.SHORT:
+				return (short) bits;
+				
+			case Ion.INT:
+				return (int) bits;
+				
+			case Ion.LONG:
+				return bits;
+				
+			case Ion.FLOAT:
+				return Float.intBitsToFloat((int) bits);
+				
+			case Ion.DOUBLE:
+				return Double.longBitsToDouble(bits);
+				
+			default:
+				throw new IllegalArgumentException("Not a primitive mark: " + mark);
+		}
+	}
+	
+	
+	/**
+	 * Compare value bits the same way as the boxed values are compared
+	 *
+	 * @param mark primitive mark
+	 * @param a value bits
+	 * @param b value bits
+	 * @return true if equal
+	 */
+	static boolean bitsEqual(int mark, long a, long b)
+	{
+		switch (mark) {
+			case Ion.FLOAT:
+				return Float.floatToIntBits(Float.intBitsToFloat((int) a)) == Float.floatToIntBits(Float.intBitsToFloat((int) b));
+				
+			case Ion.DOUBLE:
+				return Double.doubleToLongBits(Double.longBitsToDouble(a)) == Double.doubleToLongBits(Double.longBitsToDouble(b));
+				
+			default:
+				return a == b;
+		}
+	}
+	
+	
+	/**
+	 * Get hash code of a value, same as of the boxed value
+	 *
+	 * @param mark primitive mark
+	 * @param bits value bits
+	 * @return hash code
+	 */
+	static int valueHash(int mark, long bits)
+	{
+		switch (mark) {
+			case Ion.BOOLEAN:
+				return bits != 0 ? 1231 : 1237;
+				
+			case Ion.FLOAT:
+				return Float.floatToIntBits(Float.intBitsToFloat((int) bits));
+				
+			case Ion.DOUBLE: {
+				final long l = Double.doubleToLongBits(Double.longBitsToDouble(bits));
+				return (int) (l ^ (l >>> 32));
+			}
+			
+			case Ion.LONG:
+				return (int) (bits ^ (bits >>> 32));
+				
+			default:
+				return (int) bits;
+		}
+	}
+	
+	
+	private static int hash(String key)
+	{
+		final int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	
+	/**
+	 * Find a slot
+	 *
+	 * @param key key
+	 * @return slot index, or -1 if not present
+	 */
+	int find(Object key)
+	{
+		if (size == 0 || !(key instanceof String)) return -1;
+		
+		final int mask = keys.length - 1;
+		for (int i = hash((String) key) & mask;; i = (i + 1) & mask) {
+			final String k = keys[i];
+			if (k == null) return -1;
+			if (k.equals(key)) return i;
+		}
+	}
+	
+	
+	/**
+	 * Put a value, replacing any previous one
+	 *
+	 * @param key key
+	 * @param mark primitive mark
+	 * @param bits value bits
+	 */
+	void put(String key, int mark, long bits)
+	{
+		if (keys == null) {
+			allocate(INITIAL_CAPACITY);
+		} else if ((size + 1) * 4 > keys.length * 3) {
+			rehash(keys.length * 2);
+		}
+		
+		final int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != null) {
+			if (keys[i].equals(key)) break;
+			i = (i + 1) & mask;
+		}
+		
+		if (keys[i] == null) size++;
+		
+		keys[i] = key;
+		tags[i] = (byte) mark;
+		values[i] = bits;
+	}
+	
+	
+	/**
+	 * Remove a value
+	 *
+	 * @param key key
+	 * @return true if there was a value
+	 */
+	boolean remove(Object key)
+	{
+		int i = find(key);
+		if (i == -1) return false;
+		
+		// backward-shift deletion, keeps probe sequences intact
+		final int mask = keys.length - 1;
+		for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+			final int home = hash(keys[j]) & mask;
+			
+			final boolean movable = (j > i) ? (home <= i || home > j) : (home <= i && home > j);
+			if (movable) {
+				keys[i] = keys[j];
+				tags[i] = tags[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		
+		keys[i] = null;
+		size--;
+		return true;
+	}
+	
+	
+	int size()
+	{
+		return size;
+	}
+	
+	
+	/**
+	 * Check if a value is stored under any key
+	 *
+	 * @param mark primitive mark
+	 * @param bits value bits
+	 * @return true if found
+	 */
+	boolean containsValue(int mark, long bits)
+	{
+		for (int i = 0; i < capacity(); i++) {
+			if (keys[i] != null && tags[i] == mark && bitsEqual(mark, values[i], bits)) return true;
+		}
+		return false;
+	}
+	
+	
+	void clear()
+	{
+		if (size == 0) return;
+		
+		Arrays.fill(keys, null);
+		size = 0;
+	}
+	
+	
+	/**
+	 * @return number of slots (for iteration)
+	 */
+	int capacity()
+	{
+		return keys == null ? 0 : keys.length;
+	}
+	
+	
+	/**
+	 * @return key in slot, null if the slot is empty
+	 */
+	String keyAt(int slot)
+	{
+		return keys[slot];
+	}
+	
+	
+	int markAt(int slot)
+	{
+		return tags[slot];
+	}
+	
+	
+	long bitsAt(int slot)
+	{
+		return values[slot];
+	}
+	
+	
+	/**
+	 * Hash code of the values, same as of a map with the boxed values
+	 */
+	@Override
+	public int hashCode()
+	{
+		int h = 0;
+		for (int i = 0; i < capacity(); i++) {
+			if (keys[i] != null) h += keys[i].hashCode() ^ valueHash(tags[i], values[i]);
+		}
+		return h;
+	}
+	
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) return true;
+		if (!(obj instanceof PrimitiveSlots)) return false;
+		
+		final PrimitiveSlots other = (PrimitiveSlots) obj;
+		if (size != other.size) return false;
+		
+		for (int i = 0; i < capacity(); i++) {
+			if (keys[i] == null) continue;
+			
+			final int slot = other.find(keys[i]);
+			if (slot == -1 || other.tags[slot] != tags[i] || !bitsEqual(tags[i], values[i], other.values[slot])) return false;
+		}
+		return true;
+	}
+	
+	
+	private void allocate(int capacity)
+	{
+		keys = new String[capacity];
+		tags = new byte[capacity];
+		values = new long[capacity];
+	}
+	
+	
+	private void rehash(int capacity)
+	{
+		final String[] oldKeys = keys;
+		final byte[] oldTags = tags;
+		final long[] oldValues = values;
+		
+		allocate(capacity);
+		size = 0;
+		
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) put(oldKeys[i], oldTags[i], oldValues[i]);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package mightypork.utils.ion;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Measures nested objects of one stream and adds them to {@link IonStats}.
+ * Bytes and time of an object include its contents; the "self" values exclude
+ * nested objects, which are recorded separately.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+final class StatsRecorder {
+	
+	private final IonStats stats;
+	
+	/** Current level; level 0 holds the top-level objects */
+	private int depth;
+	
+	private long[] startPos = new long[16];
+	private long[] startNanos = new long[16];
+	private long[] childBytes = new long[16];
+	private long[] childNanos = new long[16];
+	
+	
+	public StatsRecorder(IonStats stats)
+	{
+		this.stats = stats;
+	}
+	
+	
+	/**
+	 * @param stats statistics, can be null
+	 * @return a recorder, or null if the statistics are null
+	 */
+	static StatsRecorder create(IonStats stats)
+	{
+		return stats == null ? null : new StatsRecorder(stats);
+	}
+	
+	
+	/**
+	 * @return the statistics recorded to
+	 */
+	public IonStats getStats()
+	{
+		return stats;
+	}
+	
+	
+	/**
+	 * Start measuring an object
+	 *
+	 * @param position stream position where the object starts
+	 */
+	public void begin(long position)
+	{
+		if (++depth == startPos.length) grow();
+		
+		startPos[depth] = position;
+		childBytes[depth] = 0;
+		childNanos[depth] = 0;
+		startNanos[depth] = System.nanoTime();
+	}
+	
+	
+	/**
+	 * Finish measuring an object started by <code>begin()</code>
+	 *
+	 * @param type the object's type
+	 * @param position stream position where the object ends
+	 */
+	public void end(IonType type, long position)
+	{
+		final long nanos = System.nanoTime() - startNanos[depth];
+		final long bytes = position - startPos[depth];
+		
+		stats.add(type.mark, type.type, bytes, bytes - childBytes[depth], nanos, nanos - childNanos[depth]);
+		
+		depth--;
+		childBytes[depth] += bytes;
+		childNanos[depth] += nanos;
+	}
+	
+	
+	/**
+	 * Attribute bytes to nested objects measured by another recorder (ie. in
+	 * a parallel segment).
+	 *
+	 * @param bytes byte count
+	 */
+	public void addNestedBytes(long bytes)
+	{
+		childBytes[depth] += bytes;
+	}
+	
+	
+	private void grow()
+	{
+		final int length = startPos.length * 2;
+		startPos = Arrays.copyOf(startPos, length);
+		startNanos = Arrays.copyOf(startNanos, length);
+		childBytes = Arrays.copyOf(childBytes, length);
+		childNanos = Arrays.copyOf(childNanos, length);
+	}
+}
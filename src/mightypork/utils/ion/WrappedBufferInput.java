@@ -0,0 +1,37 @@
+package mightypork.utils.ion;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Data input reading bytes already held in memory.
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+class WrappedBufferInput extends ByteBufferInput {
+	
+	public WrappedBufferInput(byte[] data, int offset, int length)
+	{
+		this(ByteBuffer.wrap(data, offset, length));
+	}
+	
+	
+	public WrappedBufferInput(ByteBuffer data)
+	{
+		buffer = data;
+	}
+	
+	
+	@Override
+	protected boolean refill()
+	{
+		return false; // all data is in the buffer
+	}
+	
+	
+	@Override
+	public void close()
+	{
+	}
+}
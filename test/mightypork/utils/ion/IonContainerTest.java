@@ -0,0 +1,111 @@
+package mightypork.utils.ion;
+
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Reopening containers which were not closed properly
+ *
+ * @author Ondřej Hruška (MightyPork)
+ */
+public class IonContainerTest {
+	
+	private File file;
+	private File copy;
+	
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("ionc", ".ion");
+		copy = File.createTempFile("ionc", ".ion");
+		file.delete();
+	}
+	
+	
+	@After
+	public void tearDown()
+	{
+		file.delete();
+		copy.delete();
+	}
+	
+	
+	/**
+	 * Copy the file as it is now, like after a crash
+	 */
+	private File snapshot() throws IOException
+	{
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+	
+	
+	@Test
+	public void testUnflushedWrite() throws IOException
+	{
+		try(final IonContainer c = new IonContainer(file)) {
+			c.write("a", "first");
+			c.write("b", new int[] { 1, 2, 3 });
+			c.flush();
+			
+			c.write("a", "replaced");
+			c.write("c", "new");
+			
+			try(final IonContainer reopened = new IonContainer(snapshot())) {
+				assertEquals(2, reopened.keys().size());
+				assertEquals("first", reopened.read("a"));
+				assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) reopened.read("b"));
+				assertFalse(reopened.contains("c"));
+				
+				// the discarded tail is overwritten
+				reopened.write("d", "after");
+			}
+			
+			try(final IonContainer reopened = new IonContainer(copy)) {
+				assertEquals("after", reopened.read("d"));
+				assertEquals("first", reopened.read("a"));
+			}
+		}
+		
+		try(final IonContainer c = new IonContainer(file)) {
+			assertEquals("replaced", c.read("a"));
+			assertEquals("new", c.read("c"));
+		}
+	}
+	
+	
+	@Test
+	public void testTrailerLookalikeInTail() throws IOException
+	{
+		// record bytes resembling a trailer: index offset + magic
+		final byte[] fake = { 0, 0, 0, 0, 0, 0, 0, 5, 'I', 'O', 'N', 'C' };
+		
+		try(final IonContainer c = new IonContainer(file)) {
+			c.write("a", "first");
+			c.flush();
+			c.write("fake", fake);
+			
+			try(final RandomAccessFile raf = new RandomAccessFile(snapshot(), "rw")) {
+				raf.seek(raf.length());
+				raf.write(fake); // torn write ending with the lookalike
+			}
+			
+			try(final IonContainer reopened = new IonContainer(copy)) {
+				assertEquals("first", reopened.read("a"));
+				assertFalse(reopened.contains("fake"));
+			}
+		}
+	}
+}